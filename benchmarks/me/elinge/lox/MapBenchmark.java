@@ -0,0 +1,100 @@
+package me.elinge.lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+// Compares the maps of Lox scripts with java.util.HashMap, for the time it takes to put, get and remove a million keys
+// and the memory a map of them takes. Both hold the same key and value objects, so the difference in memory is what
+// the maps themselves take. It is in the package of the interpreter to get at LoxMap; from the root of the repository:
+//
+//     javac -d out src/me/elinge/lox/*.java benchmarks/me/elinge/lox/MapBenchmark.java
+//     java -cp out me.elinge.lox.MapBenchmark
+class MapBenchmark {
+    private static final int SIZE = 1_000_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        var nothing = new PrintStream(OutputStream.nullOutputStream());
+        var interpreter = new Interpreter(new Output(Channels.newChannel(nothing)), new ErrorReporter(nothing));
+
+        var random = new Random(42);
+        run("counting numbers", i -> (double)i, interpreter);
+        run("random numbers", i -> random.nextDouble(), interpreter);
+        run("strings", i -> "key" + i, interpreter);
+    }
+
+    private static void run(String name, IntFunction<Object> key, Interpreter interpreter) {
+        var keys = new Object[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = key.apply(i);
+        }
+        var value = (Object)1.0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            var start = System.nanoTime();
+            var map = LoxMap.create(interpreter);
+            for (var k : keys) {
+                LoxMap.put(interpreter, map, k, value);
+            }
+            for (var k : keys) {
+                LoxMap.get(map, k);
+            }
+            for (int i = 0; i < SIZE; i += 2) {
+                LoxMap.remove(map, keys[i]);
+            }
+            var lox = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            var hashMap = new HashMap<Object, Object>();
+            for (var k : keys) {
+                hashMap.put(k, value);
+            }
+            for (var k : keys) {
+                hashMap.get(k);
+            }
+            for (int i = 0; i < SIZE; i += 2) {
+                hashMap.remove(keys[i]);
+            }
+            var java = System.nanoTime() - start;
+
+            System.out.printf(
+                    "%s, round %d: LoxMap %.1f ms, HashMap %.1f ms%n", name, round + 1, lox / 1e6, java / 1e6);
+        }
+
+        var before = used();
+        var map = LoxMap.create(interpreter);
+        for (var k : keys) {
+            LoxMap.put(interpreter, map, k, value);
+        }
+        var lox = used() - before;
+
+        before = used();
+        var hashMap = new HashMap<Object, Object>();
+        for (var k : keys) {
+            hashMap.put(k, value);
+        }
+        var java = used() - before;
+
+        System.out.printf(
+                "%s: LoxMap %.1f bytes per entry, HashMap %.1f bytes per entry%n%n",
+                name,
+                (double)lox / SIZE,
+                (double)java / SIZE);
+        // Keep both alive until they've been measured.
+        if (LoxMap.size(map).equals((double)hashMap.size() + 1)) {
+            System.out.println();
+        }
+    }
+
+    private static long used() {
+        var runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
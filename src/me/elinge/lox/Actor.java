@@ -0,0 +1,97 @@
+package me.elinge.lox;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TransferQueue;
+
+// A script running on an interpreter of its own, with its own globals, on a thread of its own. Actors share nothing, so
+// the only way they can talk is by sending each other messages, which can only be values that can't change: numbers,
+// strings, booleans, nil and actors. Every interpreter is an actor, so the main script can be sent messages too, and
+// tasks spawned by an actor share its mailbox.
+class Actor {
+    // Stands in for nil, which the mailbox can't hold.
+    private static final Object NIL = new Object();
+
+    private final String name;
+    // Lock-free, and parks the receiver while it's empty.
+    private final TransferQueue<Object> mailbox = new LinkedTransferQueue<>();
+
+    Actor(String name) {
+        this.name = name;
+    }
+
+    // Scans, parses and resolves the script right away, so errors in it are reported by the actor that starts it.
+    static Actor start(Interpreter parent, Object path) {
+        var file = Rope.string(path);
+        if (file == null) {
+            throw new NativeError("An actor is started from the path of a script.");
+        }
+
+        String source;
+        try {
+            source = Lox.readFile(file);
+        } catch (IOException e) {
+            throw new NativeError(String.format("Can't read \"%s\".", file));
+        }
+
+        // The actor reports to the same place as its parent, so the program fails if any of its actors does.
+        var reporter = parent.reporter.child();
+        var statements = new Parser(new Scanner(source, reporter).scanTokens(), reporter).parse();
+        if (!reporter.hadError) {
+            new Resolver(reporter).resolve(statements);
+        }
+
+        if (reporter.hadError) {
+            throw new NativeError(String.format("Actor \"%s\" has errors.", file));
+        }
+
+        var interpreter = new Interpreter(parent.out, parent.reporter, new Actor(file));
+        interpreter.limit(parent.budget);
+        var thread = Lox.newThread(() -> {
+            try {
+                interpreter.interpret(statements);
+            } finally {
+                interpreter.finish();
+            }
+        }, "lox-actor " + file);
+        // Like tasks, an actor that is still waiting for messages doesn't keep the program from exiting.
+        thread.setDaemon(true);
+        thread.start();
+
+        return interpreter.actor;
+    }
+
+    static Object tell(Object actor, Object message) {
+        if (!(actor instanceof Actor receiver)) {
+            throw new NativeError("Can only send messages to actors.");
+        }
+
+        if (message == null) {
+            message = NIL;
+        } else if (message instanceof Rope rope) {
+            message = rope.toString();
+        } else if (!(message instanceof Double || message instanceof String || message instanceof Boolean
+                || message instanceof Actor)) {
+            throw new NativeError("Messages can only be numbers, strings, booleans, nil and actors.");
+        }
+
+        receiver.mailbox.add(message);
+        return null;
+    }
+
+    // Waits for the next message sent to this actor.
+    Object listen() {
+        try {
+            var message = mailbox.take();
+            return message == NIL ? null : message;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted while waiting for a message.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<actor " + name + ">";
+    }
+}
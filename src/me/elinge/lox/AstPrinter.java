@@ -15,6 +15,11 @@ class AstPrinter implements Expr.Visitor<String> {
         return parenthesize(expr.callee.accept(this), expr.arguments.toArray(Expr[]::new));
     }
 
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return parenthesize("." + expr.name.lexeme(), expr.object);
+    }
+
     @Override
     public String visitGroupingExpr(Expr.Grouping expr) {
         return parenthesize("grouping", expr.expression);
@@ -30,6 +35,21 @@ class AstPrinter implements Expr.Visitor<String> {
         return parenthesize(expr.operator.lexeme(), expr.left, expr.right);
     }
 
+    @Override
+    public String visitSetExpr(Expr.Set expr) {
+        return parenthesize("= ." + expr.name.lexeme(), expr.object, expr.value);
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super expr) {
+        return parenthesize("super." + expr.method.lexeme());
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This expr) {
+        return parenthesize("this");
+    }
+
     @Override
     public String visitUnaryExpr(Expr.Unary expr) {
         return parenthesize(expr.operator.lexeme(), expr.right);
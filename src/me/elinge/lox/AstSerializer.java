@@ -0,0 +1,609 @@
+package me.elinge.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary encoding of resolved programs, including the scope distances found by the resolver and the lines of
+// every token. Each string is written once and referred to by index afterwards, integers are written as varints, and
+// lines as the difference from the previous token's.
+// Function bodies that haven't been parsed yet are stored as their tokens.
+class AstSerializer {
+    // Node tags.
+    private static final int ASSIGN = 0;
+    private static final int BINARY = 1;
+    private static final int CALL = 2;
+    private static final int GROUPING = 3;
+    private static final int LITERAL = 4;
+    private static final int LOGICAL = 5;
+    private static final int UNARY = 6;
+    private static final int TERNARY = 7;
+    private static final int VARIABLE = 8;
+    private static final int BLOCK = 9;
+    private static final int EXPRESSION = 10;
+    private static final int FUNCTION = 11;
+    private static final int LAZY_FUNCTION = 12;
+    private static final int IF = 13;
+    private static final int PRINT = 14;
+    private static final int RETURN = 15;
+    private static final int VAR = 16;
+    private static final int WHILE = 17;
+    private static final int PARALLEL_FOR = 18;
+    private static final int YIELD = 19;
+    private static final int CLASS = 20;
+    private static final int GET = 21;
+    private static final int SET = 22;
+    private static final int SUPER = 23;
+    private static final int THIS = 24;
+
+    // Value tags.
+    private static final int NIL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+
+    private static final TokenType[] tokenTypes = TokenType.values();
+
+    static byte[] serialize(List<Stmt> statements) {
+        var bytes = new ByteArrayOutputStream();
+        new Writer(new DataOutputStream(bytes)).writeStatements(statements);
+        return bytes.toByteArray();
+    }
+
+    static List<Stmt> deserialize(ByteBuffer bytes) throws IOException {
+        try {
+            return new Reader(bytes).readStatements();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new EOFException();
+        }
+    }
+
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private int line = 0;
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            writeTag(ASSIGN);
+            writeToken(expr.name);
+            writeExpr(expr.value);
+            writeInt(expr.depth + 1);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            writeTag(BINARY);
+            writeExpr(expr.left);
+            writeToken(expr.operator);
+            writeExpr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            writeTag(CALL);
+            writeExpr(expr.callee);
+            writeToken(expr.paren);
+            writeInt(expr.arguments.size());
+            for (var argument : expr.arguments) {
+                writeExpr(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            writeTag(GET);
+            writeExpr(expr.object);
+            writeToken(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            writeTag(GROUPING);
+            writeExpr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            writeTag(LITERAL);
+            writeValue(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            writeTag(LOGICAL);
+            writeExpr(expr.left);
+            writeToken(expr.operator);
+            writeExpr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            writeTag(SET);
+            writeExpr(expr.object);
+            writeToken(expr.name);
+            writeExpr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            writeTag(SUPER);
+            writeToken(expr.keyword);
+            writeToken(expr.method);
+            writeInt(expr.depth + 1);
+            writeInt(expr.thisDepth + 1);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            writeTag(THIS);
+            writeToken(expr.keyword);
+            writeInt(expr.depth + 1);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            writeTag(UNARY);
+            writeToken(expr.operator);
+            writeExpr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            writeTag(TERNARY);
+            writeExpr(expr.left);
+            writeToken(expr.operator1);
+            writeExpr(expr.middle);
+            writeToken(expr.operator2);
+            writeExpr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            writeTag(VARIABLE);
+            writeToken(expr.name);
+            writeInt(expr.depth + 1);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            writeTag(BLOCK);
+            writeStatements(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            writeTag(CLASS);
+            writeToken(stmt.name);
+            writeOptional(stmt.superclass);
+            writeInt(stmt.methods.size());
+            for (var method : stmt.methods) {
+                writeStmt(method);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            writeTag(EXPRESSION);
+            writeExpr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            var lazy = stmt.body instanceof LazyBody body ? body.tokens() : null;
+            writeTag(lazy != null ? LAZY_FUNCTION : FUNCTION);
+            writeToken(stmt.name);
+            writeTokens(stmt.params);
+            if (lazy != null) {
+                writeTokens(lazy);
+            } else {
+                writeStatements(stmt.body);
+                writeBoolean(stmt.generator);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            writeTag(IF);
+            writeExpr(stmt.condition);
+            writeStmt(stmt.thenBranch);
+            writeOptional(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            writeTag(PRINT);
+            writeExpr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            writeTag(RETURN);
+            writeToken(stmt.keyword);
+            writeOptional(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            writeTag(VAR);
+            writeToken(stmt.name);
+            writeOptional(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            writeTag(WHILE);
+            writeToken(stmt.keyword);
+            writeExpr(stmt.condition);
+            writeStmt(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitParallelForStmt(Stmt.ParallelFor stmt) {
+            writeTag(PARALLEL_FOR);
+            writeToken(stmt.keyword);
+            writeToken(stmt.variable);
+            writeExpr(stmt.start);
+            writeToken(stmt.operator);
+            writeExpr(stmt.end);
+            writeExpr(stmt.step);
+            writeStmt(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitYieldStmt(Stmt.Yield stmt) {
+            writeTag(YIELD);
+            writeToken(stmt.keyword);
+            writeOptional(stmt.value);
+            return null;
+        }
+
+        void writeStatements(List<Stmt> statements) {
+            writeInt(statements.size());
+            for (var statement : statements) {
+                writeStmt(statement);
+            }
+        }
+
+        private void writeStmt(Stmt stmt) {
+            stmt.accept(this);
+        }
+
+        private void writeExpr(Expr expr) {
+            expr.accept(this);
+        }
+
+        private void writeOptional(Stmt stmt) {
+            writeBoolean(stmt != null);
+            if (stmt != null) {
+                writeStmt(stmt);
+            }
+        }
+
+        private void writeOptional(Expr expr) {
+            writeBoolean(expr != null);
+            if (expr != null) {
+                writeExpr(expr);
+            }
+        }
+
+        private void writeTokens(List<Token> tokens) {
+            writeInt(tokens.size());
+            for (var token : tokens) {
+                writeToken(token);
+            }
+        }
+
+        private void writeToken(Token token) {
+            writeInt(token.type().ordinal());
+            writeString(token.lexeme());
+            writeValue(token.literal());
+            // Zigzag encoded, lines mostly go up but can go down again.
+            var delta = token.line() - line;
+            writeInt((delta << 1) ^ (delta >> 31));
+            line = token.line();
+        }
+
+        private void writeValue(Object value) {
+            try {
+                if (value == null) {
+                    writeTag(NIL);
+                } else if (value instanceof Boolean bool) {
+                    writeTag(bool ? TRUE : FALSE);
+                } else if (value instanceof Double number) {
+                    writeTag(NUMBER);
+                    out.writeDouble(number);
+                } else {
+                    writeTag(STRING);
+                    writeString((String)value);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Strings are numbered in the order they are first written, which is also the order they are first read in.
+        private void writeString(String string) {
+            var index = strings.get(string);
+            if (index != null) {
+                writeInt(index + 1);
+                return;
+            }
+
+            strings.put(string, strings.size());
+            writeInt(0);
+            var bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            try {
+                out.write(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeTag(int tag) {
+            try {
+                out.writeByte(tag);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeBoolean(boolean value) {
+            writeTag(value ? 1 : 0);
+        }
+
+        // Unsigned LEB128.
+        private void writeInt(int value) {
+            try {
+                while ((value & ~0x7f) != 0) {
+                    out.writeByte((value & 0x7f) | 0x80);
+                    value >>>= 7;
+                }
+                out.writeByte(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer in;
+        private final List<String> strings = new ArrayList<>();
+        private int line = 0;
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        List<Stmt> readStatements() throws IOException {
+            var count = readCount();
+            var statements = new ArrayList<Stmt>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(readStmt());
+            }
+
+            return statements;
+        }
+
+        private Stmt readStmt() throws IOException {
+            var tag = readTag();
+            return switch (tag) {
+                case BLOCK -> new Stmt.Block(readStatements());
+                case CLASS -> {
+                    var name = readToken();
+                    var superclass = readOptionalExpr();
+                    if (superclass != null && !(superclass instanceof Expr.Variable)) {
+                        throw new IOException("Superclass isn't a variable.");
+                    }
+
+                    var count = readCount();
+                    var methods = new ArrayList<Stmt.Function>(count);
+                    for (int i = 0; i < count; i++) {
+                        if (!(readStmt() instanceof Stmt.Function method)) {
+                            throw new IOException("Method isn't a function.");
+                        }
+                        methods.add(method);
+                    }
+                    yield new Stmt.Class(name, (Expr.Variable)superclass, methods);
+                }
+                case EXPRESSION -> new Stmt.Expression(readExpr());
+                case FUNCTION -> {
+                    var function = new Stmt.Function(readToken(), readTokens(), readStatements());
+                    function.generator = readBoolean();
+                    yield function;
+                }
+                case LAZY_FUNCTION -> {
+                    var name = readToken();
+                    var params = readTokens();
+                    yield new Stmt.Function(name, params, new LazyBody(name, params, readTokens()));
+                }
+                case IF -> new Stmt.If(readExpr(), readStmt(), readOptionalStmt());
+                case PRINT -> new Stmt.Print(readExpr());
+                case RETURN -> new Stmt.Return(readToken(), readOptionalExpr());
+                case VAR -> new Stmt.Var(readToken(), readOptionalExpr());
+                case WHILE -> new Stmt.While(readToken(), readExpr(), readStmt());
+                case YIELD -> new Stmt.Yield(readToken(), readOptionalExpr());
+                case PARALLEL_FOR -> new Stmt.ParallelFor(
+                        readToken(), readToken(), readExpr(), readToken(), readExpr(), readExpr(), readStmt());
+                default -> throw new IOException("Unknown statement tag " + tag + ".");
+            };
+        }
+
+        private Expr readExpr() throws IOException {
+            var tag = readTag();
+            return switch (tag) {
+                case ASSIGN -> {
+                    var expr = new Expr.Assign(readToken(), readExpr());
+                    expr.depth = readInt() - 1;
+                    yield expr;
+                }
+                case BINARY -> new Expr.Binary(readExpr(), readToken(), readExpr());
+                case CALL -> {
+                    var callee = readExpr();
+                    var paren = readToken();
+                    var count = readCount();
+                    var arguments = new ArrayList<Expr>(count);
+                    for (int i = 0; i < count; i++) {
+                        arguments.add(readExpr());
+                    }
+                    yield new Expr.Call(callee, paren, arguments);
+                }
+                case GET -> new Expr.Get(readExpr(), readToken());
+                case GROUPING -> new Expr.Grouping(readExpr());
+                case LITERAL -> new Expr.Literal(readValue());
+                case LOGICAL -> new Expr.Logical(readExpr(), readToken(), readExpr());
+                case SET -> new Expr.Set(readExpr(), readToken(), readExpr());
+                case SUPER -> {
+                    var expr = new Expr.Super(readToken(), readToken());
+                    expr.depth = readInt() - 1;
+                    expr.thisDepth = readInt() - 1;
+                    yield expr;
+                }
+                case THIS -> {
+                    var expr = new Expr.This(readToken());
+                    expr.depth = readInt() - 1;
+                    yield expr;
+                }
+                case UNARY -> new Expr.Unary(readToken(), readExpr());
+                case TERNARY -> new Expr.Ternary(readExpr(), readToken(), readExpr(), readToken(), readExpr());
+                case VARIABLE -> {
+                    var expr = new Expr.Variable(readToken());
+                    expr.depth = readInt() - 1;
+                    yield expr;
+                }
+                default -> throw new IOException("Unknown expression tag " + tag + ".");
+            };
+        }
+
+        private Stmt readOptionalStmt() throws IOException {
+            return readTag() != 0 ? readStmt() : null;
+        }
+
+        private Expr readOptionalExpr() throws IOException {
+            return readTag() != 0 ? readExpr() : null;
+        }
+
+        private List<Token> readTokens() throws IOException {
+            var count = readCount();
+            var tokens = new ArrayList<Token>(count);
+            for (int i = 0; i < count; i++) {
+                tokens.add(readToken());
+            }
+
+            return tokens;
+        }
+
+        private Token readToken() throws IOException {
+            var type = readInt();
+            if (type >= tokenTypes.length) {
+                throw new IOException("Unknown token type " + type + ".");
+            }
+
+            var lexeme = readString();
+            var literal = readValue();
+            var delta = readInt();
+            line += (delta >>> 1) ^ -(delta & 1);
+            return new Token(tokenTypes[type], lexeme, literal, line);
+        }
+
+        private Object readValue() throws IOException {
+            var tag = readTag();
+            return switch (tag) {
+                case NIL -> null;
+                case FALSE -> false;
+                case TRUE -> true;
+                case NUMBER -> in.getDouble();
+                case STRING -> readString();
+                default -> throw new IOException("Unknown value tag " + tag + ".");
+            };
+        }
+
+        private String readString() throws IOException {
+            var index = readInt();
+            if (index > 0) {
+                if (index > strings.size()) {
+                    throw new IOException("Unknown string " + index + ".");
+                }
+
+                return strings.get(index - 1);
+            }
+
+            var length = readCount();
+
+            var string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            strings.add(string);
+            return string;
+        }
+
+        private int readTag() {
+            return in.get() & 0xff;
+        }
+
+        private boolean readBoolean() {
+            return readTag() != 0;
+        }
+
+        // The number of things that follow, each of which takes at least a byte. Checked against what's left, so that a
+        // corrupt count can't make room for more than that.
+        private int readCount() throws IOException {
+            var count = readInt();
+            if (count < 0 || count > in.remaining()) {
+                throw new IOException("Bad count " + count + ".");
+            }
+
+            return count;
+        }
+
+        private int readInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                var b = in.get() & 0xff;
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IOException("Malformed varint.");
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package me.elinge.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+// Runs many scripts at once on a fixed number of threads, each on an interpreter of its own with its output captured,
+// and reports how long each took and which ones failed.
+class Batch {
+    private record Result(Path script, int exitCode, long nanos, String error) {}
+
+    // Jobs are either all the .lox files under a directory, or listed in a manifest file, one path per line relative
+    // to the manifest, with blank lines and lines starting with '#' ignored. The output of each job is saved in
+    // outputDirectory if given. Returns the exit code for the whole batch.
+    static int run(Path jobs, int workers, Path outputDirectory) throws IOException, InterruptedException {
+        var scripts = findScripts(jobs);
+        if (outputDirectory != null) {
+            Files.createDirectories(outputDirectory);
+        }
+
+        var pool = Executors.newFixedThreadPool(workers, runnable -> Lox.newThread(runnable, "lox-batch"));
+        var start = System.nanoTime();
+        var futures = new ArrayList<Future<Result>>();
+        for (int i = 0; i < scripts.size(); i++) {
+            var index = i;
+            futures.add(pool.submit(() -> runJob(index, scripts.get(index), outputDirectory)));
+        }
+
+        // A job that failed in a way runJob() didn't expect is reported against its script like any other failure.
+        var results = new ArrayList<Result>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                results.add(new Result(scripts.get(i), 70, 0, "Job failed: " + e.getCause())); // EX_SOFTWARE
+            }
+        }
+        var elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        return report(results, elapsed, workers);
+    }
+
+    private static List<Path> findScripts(Path jobs) throws IOException {
+        if (Files.isDirectory(jobs)) {
+            try (var files = Files.walk(jobs)) {
+                return files.filter(path -> path.toString().endsWith(".lox") && Files.isRegularFile(path))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        }
+
+        var scripts = new ArrayList<Path>();
+        var base = jobs.toAbsolutePath().getParent();
+        for (var line : Files.readAllLines(jobs)) {
+            line = line.strip();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                scripts.add(base.resolve(line));
+            }
+        }
+
+        return scripts;
+    }
+
+    private static Result runJob(int index, Path script, Path outputDirectory) {
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+
+        var start = System.nanoTime();
+        int exitCode;
+        try {
+            exitCode = Lox.runIsolated(Lox.readFile(script.toString()), new PrintStream(out), new PrintStream(err));
+        } catch (IOException e) {
+            new PrintStream(err).printf("Can't read %s: %s%n", script, e);
+            exitCode = 66; // EX_NOINPUT
+        } catch (RuntimeException | StackOverflowError e) {
+            // A bug in the interpreter, which shouldn't take the rest of the batch down with it.
+            new PrintStream(err).printf("Failed: %s%n", e);
+            exitCode = 70; // EX_SOFTWARE
+        }
+        var nanos = System.nanoTime() - start;
+
+        if (outputDirectory != null) {
+            var name = String.format("%05d-%s", index, script.getFileName());
+            try {
+                Files.write(outputDirectory.resolve(name + ".out"), out.toByteArray());
+                Files.write(outputDirectory.resolve(name + ".err"), err.toByteArray());
+            } catch (IOException e) {
+                return new Result(script, 74, nanos, "Can't save output: " + e); // EX_IOERR
+            }
+        }
+
+        // Only keep the first line of what went wrong, the rest is in the output directory.
+        var error = err.toString().lines().findFirst().orElse("");
+        return new Result(script, exitCode, nanos, error);
+    }
+
+    private static int report(List<Result> results, long elapsed, int workers) {
+        var failures = 0;
+        var latencies = new long[results.size()];
+        for (int i = 0; i < results.size(); i++) {
+            var result = results.get(i);
+            latencies[i] = result.nanos();
+            if (result.exitCode() == 0) {
+                System.out.printf("ok     %8.2f ms  %s%n", result.nanos() / 1e6, result.script());
+            } else {
+                failures++;
+                System.out.printf(
+                        "FAILED %8.2f ms  %s (exit %d) %s%n",
+                        result.nanos() / 1e6,
+                        result.script(),
+                        result.exitCode(),
+                        result.error());
+            }
+        }
+
+        Arrays.sort(latencies);
+        System.out.printf(
+                "%d jobs, %d failed, on %d workers in %.2f s: %.1f jobs/s, "
+                        + "latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                results.size(),
+                failures,
+                workers,
+                elapsed / 1e9,
+                results.size() / (elapsed / 1e9),
+                percentile(latencies, 0.50) / 1e6,
+                percentile(latencies, 0.99) / 1e6,
+                percentile(latencies, 1.0) / 1e6);
+
+        return failures == 0 ? 0 : 1;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        return sorted[Math.max(0, (int)Math.ceil(fraction * sorted.length) - 1)];
+    }
+}
@@ -0,0 +1,22 @@
+package me.elinge.lox;
+
+import java.util.List;
+
+// A method taken off an instance without calling it right away, which remembers the instance to call it on. Methods
+// called where they are looked up are called on the instance directly and never need one.
+record BoundMethod(LoxInstance receiver, Function method) implements Callable {
+    @Override
+    public int arity() {
+        return method.arity();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return method.call(interpreter, receiver, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
@@ -0,0 +1,117 @@
+package me.elinge.lox;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Limits how long a script may run: an amount of fuel, of which every loop iteration and every call burns one unit, a
+// wall clock deadline, and cancellation from another thread. It also limits how much memory the script may allocate
+// for strings, variables, environments, functions, lists and maps, as a rough estimate of what they take on the heap,
+// adding up everything allocated whether it's still in use or not. A script that goes over its budget ends with a
+// runtime error where it happened. One budget is shared by everything a run starts: tasks, generators, actors and the
+// workers of parallel for loops. Threads that are waiting for a task, channel or message don't notice until they get
+// to run again.
+public final class Budget {
+    // Interpreters take fuel in batches and only look at the clock and for cancellation when they need a new batch, so
+    // the check on every iteration and call is just counting down.
+    static final long BATCH = 1024;
+    // Likewise, allocations are added up by the interpreters and reported in batches of this many bytes, or right away
+    // for anything bigger.
+    static final long ALLOCATION_BATCH = 64 * 1024;
+
+    // Rough sizes in bytes of what scripts allocate, on a 64-bit JVM with compressed pointers.
+    static final long ENVIRONMENT_SIZE = 80;
+    static final long VARIABLE_SIZE = 48;
+    static final long FUNCTION_SIZE = 24;
+    static final long STRING_SIZE = 40;
+    static final long CHAR_SIZE = 2;
+    // A rope, without the string it flattens into.
+    static final long ROPE_SIZE = 32;
+    static final long LIST_SIZE = 32;
+    static final long MAP_SIZE = 32;
+    // The buffers of an open file.
+    static final long FILE_SIZE = 3 * LoxFile.BUFFER_SIZE;
+    // Room for an entry in a map: a key, a value and a hash.
+    static final long MAP_ENTRY_SIZE = 20;
+    // A slot of a list, whether it holds a number or a reference.
+    static final long ELEMENT_SIZE = 8;
+    // A class and the map of its methods, without the methods themselves.
+    static final long CLASS_SIZE = 64;
+    // An instance without its fields, and the slot of one field.
+    static final long INSTANCE_SIZE = 32;
+    static final long FIELD_SIZE = 4;
+
+    private final AtomicLong fuel;
+    private final long deadline;
+    private final long memory;
+    private final AtomicLong allocated = new AtomicLong();
+    private volatile boolean cancelled = false;
+
+    // A fuel of Long.MAX_VALUE or a null timeout means no limit of that kind. The timeout starts right away.
+    public Budget(long fuel, Duration timeout) {
+        this(fuel, timeout, Long.MAX_VALUE);
+    }
+
+    // The same, with at most memory bytes allocated, or Long.MAX_VALUE for no limit.
+    public Budget(long fuel, Duration timeout, long memory) {
+        this.fuel = new AtomicLong(fuel);
+        this.deadline = timeout == null ? Long.MAX_VALUE : System.nanoTime() + timeout.toNanos();
+        this.memory = memory;
+    }
+
+    // About how many bytes the script has allocated so far. Interpreters report in batches, so this can be behind by a
+    // few of them while the script is running.
+    public long allocated() {
+        return allocated.get();
+    }
+
+    // Makes the script end at its next loop iteration or call.
+    public void cancel() {
+        cancelled = true;
+    }
+
+    // Takes the next batch of fuel, returning how much was taken.
+    long refill(Token token) {
+        if (cancelled) {
+            throw new RuntimeError(token, "Script was cancelled.");
+        }
+
+        if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+            throw new RuntimeError(token, "Script timed out.");
+        }
+
+        // Allocations recorded after the fact, like flattening a rope, are caught here if nothing else catches them.
+        if (allocated.get() > memory) {
+            throw new RuntimeError(token, "Script ran out of memory.");
+        }
+
+        while (true) {
+            var left = fuel.get();
+            if (left <= 0) {
+                throw new RuntimeError(token, "Script ran out of fuel.");
+            }
+
+            var batch = Math.min(left, BATCH);
+            if (fuel.compareAndSet(left, left - batch)) {
+                return batch;
+            }
+        }
+    }
+
+    // Gives back fuel that was taken but won't be burnt, because the interpreter that took it is done or waiting.
+    void refund(long unused) {
+        fuel.addAndGet(unused);
+    }
+
+    // Adds a batch of allocations. Natives don't have a token, so for them the error is a NativeError.
+    void allocate(Token token, long bytes) {
+        if (allocated.addAndGet(bytes) > memory) {
+            var message = "Script ran out of memory.";
+            throw token == null ? new NativeError(message) : new RuntimeError(token, message);
+        }
+    }
+
+    // Adds allocations that are too late to fail, like the last ones of a run that has ended.
+    void record(long bytes) {
+        allocated.addAndGet(bytes);
+    }
+}
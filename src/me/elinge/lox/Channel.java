@@ -0,0 +1,62 @@
+package me.elinge.lox;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// A queue for passing values between tasks, holding at most a fixed number of them. Sending to a full channel waits
+// until there is room, and receiving from an empty one waits until there is something to receive.
+class Channel {
+    // Stands in for nil, which the queue can't hold.
+    private static final Object NIL = new Object();
+
+    private final BlockingQueue<Object> queue;
+
+    private Channel(int capacity) {
+        queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    static Channel create(Interpreter interpreter, Object capacity) {
+        if (!(capacity instanceof Double size) || size < 1 || size != Math.floor(size) || size > Integer.MAX_VALUE) {
+            throw new NativeError("Channel capacity must be a positive whole number.");
+        }
+
+        // The queue allocates room for all of its elements up front.
+        interpreter.allocate(null, 4 * size.longValue());
+
+        return new Channel(size.intValue());
+    }
+
+    static Object send(Object channel, Object value) {
+        try {
+            of(channel).queue.put(value == null ? NIL : value);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted while sending to a channel.");
+        }
+
+        return null;
+    }
+
+    static Object receive(Object channel) {
+        try {
+            var value = of(channel).queue.take();
+            return value == NIL ? null : value;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted while receiving from a channel.");
+        }
+    }
+
+    private static Channel of(Object channel) {
+        if (!(channel instanceof Channel result)) {
+            throw new NativeError("Expected a channel.");
+        }
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "<channel>";
+    }
+}
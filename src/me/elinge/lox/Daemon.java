@@ -0,0 +1,151 @@
+package me.elinge.lox;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+
+// Runs scripts sent over a Unix domain socket in a process that stays up, so that they don't pay for starting and
+// warming up a JVM each time. Every script runs on an interpreter of its own, several at once.
+//
+// A request is a byte saying whether what follows is a path (PATH) or source code (SOURCE), then its length in bytes
+// as an int and the text itself in UTF-8. The reply is a series of frames of a byte saying which stream it belongs to
+// (STDOUT or STDERR), the length of the data as an int and the data. The last frame is EXIT with the exit code in
+// place of the length. A request longer than MAX_REQUEST_SIZE only gets an error and exit code 76. See
+// utils/lox_client.py.
+class Daemon {
+    static final int PATH = 0;
+    static final int SOURCE = 1;
+
+    static final int EXIT = 0;
+    static final int STDOUT = 1;
+    static final int STDERR = 2;
+
+    // The longest path or script a request may send.
+    static final int MAX_REQUEST_SIZE = 16 * 1024 * 1024;
+
+    static void serve(Path socket) throws IOException {
+        // Left behind by a daemon that didn't shut down cleanly.
+        Files.deleteIfExists(socket);
+
+        try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException e) {
+                    // Nothing left to do about it.
+                }
+            }));
+
+            var workers = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    runnable -> Lox.newThread(runnable, "lox-daemon"));
+            while (true) {
+                var client = server.accept();
+                workers.execute(() -> handle(client));
+            }
+        }
+    }
+
+    private static void handle(SocketChannel client) {
+        try (client) {
+            var header = readFully(client, ByteBuffer.allocate(5));
+            var kind = header.get();
+            var length = header.getInt();
+            if (length < 0 || length > MAX_REQUEST_SIZE) {
+                var message = String.format("Bad request length %d, at most %d bytes.%n", length, MAX_REQUEST_SIZE)
+                        .getBytes(StandardCharsets.UTF_8);
+                writeFrame(client, STDERR, message.length, message, 0);
+                writeFrame(client, EXIT, 76, null, 0); // EX_PROTOCOL
+                return;
+            }
+
+            var payload = readFully(client, ByteBuffer.allocate(length));
+            var text = new String(payload.array(), StandardCharsets.UTF_8);
+
+            var stdout = new PrintStream(new BufferedOutputStream(new FrameStream(client, STDOUT, null), 1 << 16));
+            var stderr = new PrintStream(new FrameStream(client, STDERR, stdout), true);
+
+            int exitCode;
+            if (kind == PATH) {
+                try {
+                    exitCode = Lox.runIsolated(Lox.readFile(text), stdout, stderr);
+                } catch (IOException e) {
+                    stderr.printf("Can't read %s: %s%n", text, e);
+                    exitCode = 66; // EX_NOINPUT
+                }
+            } else {
+                exitCode = Lox.runIsolated(text, stdout, stderr);
+            }
+
+            stdout.flush();
+            writeFrame(client, EXIT, exitCode, null, 0);
+        } catch (IOException e) {
+            // The client went away, there's nobody to tell.
+        }
+    }
+
+    private static ByteBuffer readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+
+        return buffer.flip();
+    }
+
+    private static void writeFrame(SocketChannel channel, int stream, int length, byte[] data, int offset)
+            throws IOException {
+        var header = ByteBuffer.allocate(5).put((byte)stream).putInt(length).flip();
+        var body = data == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(data, offset, length);
+
+        // Both streams of a request write to the same channel.
+        synchronized (channel) {
+            while (header.hasRemaining() || body.hasRemaining()) {
+                channel.write(new ByteBuffer[]{header, body});
+            }
+        }
+    }
+
+    // Sends everything written to it as frames of one stream. Whatever is pending in `before` is sent first, so that
+    // output written to stdout before an error message also arrives before it.
+    private static class FrameStream extends OutputStream {
+        private final SocketChannel channel;
+        private final int stream;
+        private final OutputStream before;
+
+        FrameStream(SocketChannel channel, int stream, OutputStream before) {
+            this.channel = channel;
+            this.stream = stream;
+            this.before = before;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (before != null) {
+                before.flush();
+            }
+
+            if (len > 0) {
+                writeFrame(channel, stream, len, b, off);
+            }
+        }
+    }
+}
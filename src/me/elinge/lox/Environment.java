@@ -1,11 +1,18 @@
 package me.elinge.lox;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+// Environments can be shared between tasks running at the same time, through the globals and the closures of spawned
+// functions, so the variables are kept in a concurrent map. Reading and writing a variable is safe from any thread, but
+// something like "x = x + 1" is still a read followed by a write.
 class Environment {
+    // Stands in for nil, which the map can't hold.
+    private static final Object NIL = new Object();
+
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private final Map<String, Object> values = new ConcurrentHashMap<>();
 
     Environment() {
         enclosing = null;
@@ -16,8 +23,9 @@ class Environment {
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme())) {
-            return values.get(name.lexeme());
+        var value = values.get(name.lexeme());
+        if (value != null) {
+            return fromStored(value);
         }
 
         if (enclosing != null) {
@@ -28,7 +36,17 @@ class Environment {
     }
 
     void define(String name, Object value) {
-        values.put(name, value);
+        values.put(name, toStored(value));
+    }
+
+    // A copy of the variables defined here.
+    Map<String, Object> variables() {
+        var variables = new LinkedHashMap<String, Object>();
+        for (var entry : values.entrySet()) {
+            variables.put(entry.getKey(), fromStored(entry.getValue()));
+        }
+
+        return variables;
     }
 
     Environment ancestor(int distance) {
@@ -41,16 +59,16 @@ class Environment {
     }
 
     Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+        return fromStored(ancestor(distance).values.get(name));
     }
 
     void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme(), value);
+        ancestor(distance).values.put(name.lexeme(), toStored(value));
     }
 
     void assign(Token name, Object value) {
         if (values.containsKey(name.lexeme())) {
-            values.put(name.lexeme(), value);
+            values.put(name.lexeme(), toStored(value));
             return;
         }
 
@@ -61,4 +79,12 @@ class Environment {
 
         throw new RuntimeError(name, String.format("Undefined variable \"%s\".", name.lexeme()));
     }
+
+    private static Object toStored(Object value) {
+        return value == null ? NIL : value;
+    }
+
+    private static Object fromStored(Object value) {
+        return value == NIL ? null : value;
+    }
 }
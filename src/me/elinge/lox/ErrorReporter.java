@@ -0,0 +1,78 @@
+package me.elinge.lox;
+
+import java.io.PrintStream;
+
+// Reports the errors of one run and remembers whether there were any.
+class ErrorReporter {
+    private final PrintStream err;
+    // Flushed before every report, so that the error comes after what the script printed before it.
+    private final Output out;
+    // The reporter of the run this one reports part of, see child().
+    private final ErrorReporter parent;
+    // Tasks and actors can report errors from other threads.
+    volatile boolean hadError = false;
+    volatile boolean hadRuntimeError = false;
+    // The line of the first error reported, or -1 if there weren't any.
+    int firstErrorLine = -1;
+
+    ErrorReporter(PrintStream err) {
+        this(err, null);
+    }
+
+    ErrorReporter(PrintStream err, Output out) {
+        this(err, out, null);
+    }
+
+    private ErrorReporter(PrintStream err, Output out, ErrorReporter parent) {
+        this.err = err;
+        this.out = out;
+        this.parent = parent;
+    }
+
+    // A reporter for code parsed and resolved while the run goes on, like an actor's script or a lazy function body,
+    // maybe on another thread. It reports to the same place and has its own hadError, so the caller can tell whether
+    // that code had errors without touching the flag other threads are setting. Its errors count for this run too.
+    ErrorReporter child() {
+        return new ErrorReporter(err, out, this);
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void error(Token token, String message) {
+        if (token.type() == TokenType.EOF) {
+            report(token.line(), " at the end", message);
+        } else {
+            report(token.line(), " at '" + token.lexeme() + "'", message);
+        }
+    }
+
+    void runtimeError(RuntimeError error) {
+        flushOutput();
+        err.printf("%s\n[line %d]%n", error.getMessage(), error.token.line());
+        hadRuntimeError = true;
+    }
+
+    private void report(int line, String where, String message) {
+        flushOutput();
+        err.printf("[line %d] Error%s: %s%n", line, where, message);
+        recordError(line);
+    }
+
+    private void recordError(int line) {
+        if (firstErrorLine < 0) {
+            firstErrorLine = line;
+        }
+        hadError = true;
+        if (parent != null) {
+            parent.recordError(line);
+        }
+    }
+
+    void flushOutput() {
+        if (out != null) {
+            out.flush();
+        }
+    }
+}
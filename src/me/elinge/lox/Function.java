@@ -2,7 +2,13 @@ package me.elinge.lox;
 
 import java.util.List;
 
-record Function(Stmt.Function declaration, Environment closure) implements Callable {
+// A function or a method. Methods are called on an instance, which their body sees as "this", and an initializer
+// always returns it.
+record Function(Stmt.Function declaration, Environment closure, boolean initializer) implements Callable {
+    Function(Stmt.Function declaration, Environment closure) {
+        this(declaration, closure, false);
+    }
+
     @Override
     public int arity() {
         return declaration.params.size();
@@ -10,17 +16,32 @@ record Function(Stmt.Function declaration, Environment closure) implements Calla
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        return call(interpreter, null, arguments);
+    }
+
+    Object call(Interpreter interpreter, LoxInstance receiver, List<Object> arguments) {
         var environment = new Environment(closure);
+        if (receiver != null) {
+            environment.define("this", receiver);
+        }
         for (int i = 0; i < declaration.params.size(); i++) {
             environment.define(declaration.params.get(i).lexeme(), arguments.get(i));
         }
 
+        var body = declaration.body instanceof LazyBody lazy
+                ? lazy.statements(interpreter.reporter)
+                : declaration.body;
+        var generator = declaration.body instanceof LazyBody lazy ? lazy.generator() : declaration.generator;
+        if (generator) {
+            return new Generator(interpreter, body, environment);
+        }
+
         try {
-            interpreter.executeBlock(declaration.body, environment);
+            interpreter.executeBlock(body, environment);
         } catch (Return returnValue) {
-            return returnValue.value;
+            return initializer ? receiver : returnValue.value;
         }
-        return null;
+        return initializer ? receiver : null;
     }
 
     @Override
@@ -0,0 +1,186 @@
+package me.elinge.lox;
+
+import java.lang.ref.Cleaner;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+// What calling a function with a yield statement in it returns. The body runs on a thread of its own, but only while
+// the consumer is waiting for its next value: next() hands control over to it, and the following yield hands control
+// back along with a value. Values are produced one at a time as they are asked for, so a generator can go on forever.
+//
+// The consumer waits for the body while holding the lock of the generator, so consumers on several threads get the
+// values one at a time.
+class Generator {
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private final Producer producer;
+    // Guards pending and finished.
+    private final ReentrantLock lock = new ReentrantLock();
+    // The step that done() looked ahead to and next() hasn't returned yet.
+    private Step pending = null;
+    private boolean finished = false;
+
+    Generator(Interpreter caller, List<Stmt> body, Environment environment) {
+        producer = new Producer(caller, body, environment);
+        // The producer doesn't refer back to the generator, so a generator that is dropped before it's done can be
+        // collected, and then its thread is stopped.
+        cleaner.register(this, producer::stop);
+    }
+
+    private record Step(Object value, boolean done, Throwable error) {}
+
+    static Object done(Object generator) {
+        return of(generator).peek().done();
+    }
+
+    static Object next(Object generator) {
+        var from = of(generator);
+        from.lock.lock();
+        try {
+            var step = from.lockedPeek();
+            if (step.done()) {
+                throw new NativeError("Generator is done.");
+            }
+
+            from.pending = null;
+            return step.value();
+        } finally {
+            from.lock.unlock();
+        }
+    }
+
+    private static Generator of(Object generator) {
+        if (!(generator instanceof Generator result)) {
+            throw new NativeError("Expected a generator.");
+        }
+
+        return result;
+    }
+
+    private Step peek() {
+        lock.lock();
+        try {
+            return lockedPeek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Step lockedPeek() {
+        if (pending == null) {
+            pending = finished ? new Step(null, true, null) : producer.resume();
+            finished = pending.done();
+        }
+
+        if (pending.error() instanceof RuntimeException error) {
+            // The error is reported where it happened in the generator, and only once.
+            pending = new Step(null, true, null);
+            throw error;
+        }
+        if (pending.error() instanceof Error error) {
+            pending = new Step(null, true, null);
+            throw error;
+        }
+
+        return pending;
+    }
+
+    @Override
+    public String toString() {
+        return "<generator>";
+    }
+
+    // Runs the body of the generator, and what a yield statement talks to.
+    static class Producer implements Runnable {
+        private static final Object RESUME = new Object();
+
+        private final Interpreter interpreter;
+        private final List<Stmt> body;
+        private final Environment environment;
+        private final SynchronousQueue<Object> resumes = new SynchronousQueue<>();
+        private final SynchronousQueue<Step> steps = new SynchronousQueue<>();
+        private Thread thread = null;
+
+        private Producer(Interpreter caller, List<Stmt> body, Environment environment) {
+            this.interpreter = new Interpreter(caller, this);
+            this.body = body;
+            this.environment = environment;
+        }
+
+        // Called by the consumer. The thread is only started when the first value is asked for.
+        private Step resume() {
+            try {
+                synchronized (this) {
+                    if (thread == null) {
+                        thread = Task.threads.newThread(this);
+                        thread.start();
+                    }
+                }
+
+                resumes.put(RESUME);
+                return steps.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NativeError("Interrupted while waiting for a generator.");
+            }
+        }
+
+        @Override
+        public void run() {
+            Step last;
+            try {
+                awaitResume();
+                interpreter.executeBlock(body, environment);
+                last = new Step(null, true, null);
+            } catch (Return returnValue) {
+                last = new Step(null, true, null);
+            } catch (Stop stop) {
+                return;
+            } catch (RuntimeException | Error error) {
+                last = new Step(null, true, error);
+            } finally {
+                interpreter.finish();
+            }
+
+            try {
+                steps.put(last);
+            } catch (InterruptedException e) {
+                // Nobody is waiting for it anymore.
+            }
+        }
+
+        // Called by the yield statements of the body.
+        void yield(Object value) {
+            // The consumer may take its time asking for the next value, or never ask.
+            interpreter.returnFuel();
+            try {
+                steps.put(new Step(value, false, null));
+            } catch (InterruptedException e) {
+                throw new Stop();
+            }
+            awaitResume();
+        }
+
+        private void awaitResume() {
+            try {
+                resumes.take();
+            } catch (InterruptedException e) {
+                throw new Stop();
+            }
+        }
+
+        private synchronized void stop() {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    // Unwinds the body of a generator that was dropped.
+    private static class Stop extends RuntimeException {
+        Stop() {
+            super(null, null, false, false);
+        }
+    }
+}
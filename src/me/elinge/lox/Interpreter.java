@@ -3,40 +3,143 @@ package me.elinge.lox;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
-
-    Interpreter() {
-        globals.define("clock", new Callable() {
-            @Override
-            public int arity() {
-                return 0;
-            }
+    static final List<Native> natives = List.of(
+            new Native("clock", 0, (interpreter, arguments) -> (double)System.currentTimeMillis() / 1000.0),
+            new Native("spawn", 1, (interpreter, arguments) -> Task.spawn(interpreter, arguments.get(0))),
+            new Native("await", 1, (interpreter, arguments) -> Task.await(arguments.get(0))),
+            new Native("channel", 1, (interpreter, arguments) -> Channel.create(interpreter, arguments.get(0))),
+            new Native("send", 2, (interpreter, arguments) -> Channel.send(arguments.get(0), arguments.get(1))),
+            new Native("receive", 1, (interpreter, arguments) -> Channel.receive(arguments.get(0))),
+            new Native("actor", 1, (interpreter, arguments) -> Actor.start(interpreter, arguments.get(0))),
+            new Native("tell", 2, (interpreter, arguments) -> Actor.tell(arguments.get(0), arguments.get(1))),
+            new Native("listen", 0, (interpreter, arguments) -> interpreter.actor.listen()),
+            new Native("self", 0, (interpreter, arguments) -> interpreter.actor),
+            new Native(
+                    "parallelReduce",
+                    3,
+                    (interpreter, arguments) ->
+                            Parallel.reduce(interpreter, arguments.get(0), arguments.get(1), arguments.get(2))),
+            new Native("next", 1, (interpreter, arguments) -> Generator.next(arguments.get(0))),
+            new Native("done", 1, (interpreter, arguments) -> Generator.done(arguments.get(0))),
+            new Native("list", 0, (interpreter, arguments) -> LoxList.create(interpreter)),
+            new Native("map", 0, (interpreter, arguments) -> LoxMap.create(interpreter)),
+            // These work on lists and maps both.
+            new Native(
+                    "length",
+                    1,
+                    (interpreter, arguments) -> arguments.get(0) instanceof LoxMap
+                            ? LoxMap.size(arguments.get(0))
+                            : LoxList.length(arguments.get(0))),
+            new Native(
+                    "get",
+                    2,
+                    (interpreter, arguments) -> arguments.get(0) instanceof LoxMap
+                            ? LoxMap.get(arguments.get(0), arguments.get(1))
+                            : LoxList.get(arguments.get(0), arguments.get(1))),
+            new Native(
+                    "set",
+                    3,
+                    (interpreter, arguments) -> arguments.get(0) instanceof LoxMap
+                            ? LoxMap.put(interpreter, arguments.get(0), arguments.get(1), arguments.get(2))
+                            : LoxList.set(arguments.get(0), arguments.get(1), arguments.get(2))),
+            new Native(
+                    "push",
+                    2,
+                    (interpreter, arguments) -> LoxList.push(interpreter, arguments.get(0), arguments.get(1))),
+            new Native("remove", 2, (interpreter, arguments) -> LoxMap.remove(arguments.get(0), arguments.get(1))),
+            new Native("keys", 1, (interpreter, arguments) -> LoxMap.keys(interpreter, arguments.get(0))),
+            new Native("pop", 1, (interpreter, arguments) -> LoxList.pop(arguments.get(0))),
+            new Native("fill", 2, (interpreter, arguments) -> LoxList.fill(arguments.get(0), arguments.get(1))),
+            new Native("sort", 1, (interpreter, arguments) -> LoxList.sort(arguments.get(0))),
+            new Native("sum", 1, (interpreter, arguments) -> LoxList.sum(arguments.get(0))),
+            new Native("open", 1, (interpreter, arguments) -> LoxFile.open(interpreter, arguments.get(0))),
+            new Native("create", 1, (interpreter, arguments) -> LoxFile.create(interpreter, arguments.get(0))),
+            new Native("append", 1, (interpreter, arguments) -> LoxFile.append(interpreter, arguments.get(0))),
+            new Native("readLine", 1, (interpreter, arguments) -> LoxFile.readLine(interpreter, arguments.get(0))),
+            new Native(
+                    "read",
+                    2,
+                    (interpreter, arguments) -> LoxFile.read(interpreter, arguments.get(0), arguments.get(1))),
+            new Native("write", 2, (interpreter, arguments) -> LoxFile.write(arguments.get(0), arguments.get(1))),
+            new Native(
+                    "writeLine",
+                    2,
+                    (interpreter, arguments) -> LoxFile.writeLine(arguments.get(0), arguments.get(1))),
+            new Native("close", 1, (interpreter, arguments) -> LoxFile.close(arguments.get(0))),
+            new Native("temporaryDirectory", 0, (interpreter, arguments) -> LoxFile.temporaryDirectory(interpreter)),
+            new Native("java", 1, (interpreter, arguments) -> JavaFunction.allowed(arguments.get(0))));
+
+    final Environment globals;
+    final Output out;
+    final ErrorReporter reporter;
+    final Actor actor;
+    // What yield statements hand their values to, when running the body of a generator.
+    final Generator.Producer producer;
+    // What the run may still spend, shared with every interpreter it starts, or null if there's no limit.
+    Budget budget = null;
+    // The fuel this interpreter has taken from the budget but not burnt yet.
+    private long fuel = Long.MAX_VALUE;
+    // Bytes allocated by this interpreter that haven't been reported to the budget yet, and how many to report at once.
+    private long allocated = 0;
+    private long allocationBatch = Long.MAX_VALUE;
+    private Environment environment;
+
+    Interpreter(Output out, ErrorReporter reporter) {
+        this(out, reporter, new Actor("main"));
+    }
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double)System.currentTimeMillis() / 1000.0;
-            }
+    Interpreter(Output out, ErrorReporter reporter, Actor actor) {
+        this.globals = new Environment();
+        this.out = out;
+        this.reporter = reporter;
+        this.actor = actor;
+        this.producer = null;
+        this.environment = globals;
+        for (var function : natives) {
+            globals.define(function.name(), function);
+        }
+    }
 
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
+    // An interpreter for a task spawned by another one, sharing everything with it but the current environment.
+    Interpreter(Interpreter parent) {
+        this(parent, null);
+    }
+
+    // The same, for running the body of a generator.
+    Interpreter(Interpreter parent, Generator.Producer producer) {
+        this.globals = parent.globals;
+        this.out = parent.out;
+        this.reporter = parent.reporter;
+        this.actor = parent.actor;
+        this.producer = producer;
+        this.environment = globals;
+        limit(parent.budget);
+    }
+
+    // Must be called before anything runs, and then again before every run that gets a budget of its own.
+    void limit(Budget budget) {
+        finish();
+        allocated = 0;
+        this.budget = budget;
+        fuel = budget == null ? Long.MAX_VALUE : 0;
+        allocationBatch = budget == null ? Long.MAX_VALUE : Budget.ALLOCATION_BATCH;
     }
 
     void interpret(List<Stmt> statements) {
         try {
-            for (var statement : statements) {
-                // Execute statement.
-                statement.accept(this);
-            }
+            run(statements);
         } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            reporter.runtimeError(error);
+        }
+    }
+
+    // Like interpret(), but a runtime error is left for the caller to handle.
+    void run(List<Stmt> statements) {
+        for (var statement : statements) {
+            // Execute statement.
+            statement.accept(this);
         }
     }
 
@@ -51,14 +154,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     yield (double)left > (double)right;
                 }
 
-                if (left instanceof String a && right instanceof String b) {
-                    for (int i = 0; i < a.length() && i < b.length(); i++) {
-                        if (a.codePointAt(i) > b.codePointAt(i)) {
-                            yield true;
-                        }
-                    }
-
-                    yield false;
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    yield Rope.compare(Rope.string(left), Rope.string(right)) > 0;
                 }
 
                 throw new RuntimeError(expr.operator, "Operands must be both numbers or both strings.");
@@ -68,14 +165,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     yield (double)left >= (double)right;
                 }
 
-                if (left instanceof String a && right instanceof String b) {
-                    for (int i = 0; i < a.length() && i < b.length(); i++) {
-                        if (a.codePointAt(i) >= b.codePointAt(i)) {
-                            yield true;
-                        }
-                    }
-
-                    yield false;
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    yield Rope.compare(Rope.string(left), Rope.string(right)) >= 0;
                 }
 
                 throw new RuntimeError(expr.operator, "Operands must be both numbers or both strings.");
@@ -85,14 +176,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     yield (double)left < (double)right;
                 }
 
-                if (left instanceof String a && right instanceof String b) {
-                    for (int i = 0; i < a.length() && i < b.length(); i++) {
-                        if (a.codePointAt(i) < b.codePointAt(i)) {
-                            yield true;
-                        }
-                    }
-
-                    yield false;
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    yield Rope.compare(Rope.string(left), Rope.string(right)) < 0;
                 }
 
                 throw new RuntimeError(expr.operator, "Operands must be both numbers or both strings.");
@@ -102,14 +187,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     yield (double)left <= (double)right;
                 }
 
-                if (left instanceof String a && right instanceof String b) {
-                    for (int i = 0; i < a.length() && i < b.length(); i++) {
-                        if (a.codePointAt(i) <= b.codePointAt(i)) {
-                            yield true;
-                        }
-                    }
-
-                    yield false;
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    yield Rope.compare(Rope.string(left), Rope.string(right)) <= 0;
                 }
 
                 throw new RuntimeError(expr.operator, "Operands must be both numbers or both strings.");
@@ -144,7 +223,25 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     throw new RuntimeError(expr.operator, "Right-side operand is nil.");
                 }
 
-                yield left.toString() + right;
+                var a = left instanceof CharSequence string ? string : left.toString();
+                var b = right instanceof CharSequence string ? string : right.toString();
+                var length = (long)a.length() + b.length();
+                if (length > Integer.MAX_VALUE) {
+                    throw new RuntimeError(expr.operator, "String is too long.");
+                }
+
+                // Before concatenating, so a string that is too big never gets made. A long one only makes a rope
+                // here, and the string it flattens into is counted once that happens, so building a string in a loop
+                // is counted by what it adds rather than by the whole string on every step.
+                // Operands that aren't strings are new strings too.
+                var converted = (a == left ? 0 : Budget.STRING_SIZE + Budget.CHAR_SIZE * a.length())
+                        + (b == right ? 0 : Budget.STRING_SIZE + Budget.CHAR_SIZE * b.length());
+                allocate(
+                        expr.operator,
+                        converted + (length < Rope.MIN_LENGTH
+                                ? Budget.STRING_SIZE + Budget.CHAR_SIZE * length
+                                : Budget.ROPE_SIZE));
+                yield Rope.concat(a, b, budget);
             }
             case BANG_EQUAL -> !isEqual(left, right);
             case EQUAL_EQUAL -> isEqual(left, right);
@@ -154,7 +251,32 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        var callee = expr.callee.accept(this);
+        // A method called right where it is looked up is called on its instance without binding it first.
+        Object callee;
+        LoxInstance receiver = null;
+        if (expr.callee instanceof Expr.Get get) {
+            var instance = instance(get.object.accept(this), get.name);
+            var shape = instance.shape();
+            var cache = get.cache;
+            var entry = cache == null ? -1 : cache.find(shape);
+            if (entry < 0) {
+                cache = missedGet(get, shape);
+                entry = cache.find(shape);
+            }
+
+            var slot = cache.slot(entry);
+            if (slot >= 0) {
+                callee = instance.field(slot);
+            } else {
+                callee = cache.method(entry);
+                receiver = instance;
+            }
+        } else if (expr.callee instanceof Expr.Super superExpr) {
+            callee = superMethod(superExpr);
+            receiver = (LoxInstance)environment.getAt(superExpr.thisDepth, "this");
+        } else {
+            callee = expr.callee.accept(this);
+        }
 
         var arguments = new ArrayList<>();
         for (var argument : expr.arguments) {
@@ -165,13 +287,117 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             throw new RuntimeError(expr.paren, "Can only call functions and classes.");
         }
 
+        burn(expr.paren);
+        if (function instanceof Function || function instanceof BoundMethod) {
+            allocate(expr.paren, Budget.ENVIRONMENT_SIZE + Budget.VARIABLE_SIZE * function.arity());
+        }
+
         if (arguments.size() != function.arity()) {
             throw new RuntimeError(
                     expr.paren,
                     String.format("Expected %d arguments but got %d.", function.arity(), arguments.size()));
         }
 
-        return function.call(this, arguments);
+        try {
+            if (receiver != null) {
+                return ((Function)function).call(this, receiver, arguments);
+            }
+            return function.call(this, arguments);
+        } catch (NativeError error) {
+            throw new RuntimeError(expr.paren, error.getMessage());
+        } catch (StackOverflowError error) {
+            // Caught by the innermost call that still has enough stack left to make the error, and from there it
+            // unwinds like any other.
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+    }
+
+    @Override
+    public Object visitGetExpr(Expr.Get expr) {
+        var instance = instance(expr.object.accept(this), expr.name);
+        var shape = instance.shape();
+        var cache = expr.cache;
+        var entry = cache == null ? -1 : cache.find(shape);
+        if (entry < 0) {
+            cache = missedGet(expr, shape);
+            entry = cache.find(shape);
+        }
+
+        var slot = cache.slot(entry);
+        if (slot >= 0) {
+            return instance.field(slot);
+        }
+
+        allocate(expr.name, Budget.FUNCTION_SIZE);
+        return new BoundMethod(instance, cache.method(entry));
+    }
+
+    @Override
+    public Object visitSetExpr(Expr.Set expr) {
+        var instance = instance(expr.object.accept(this), expr.name);
+        var value = expr.value.accept(this);
+
+        // The shape can only change while the lock is held, so the entry found for it holds until the field is set.
+        synchronized (instance) {
+            var shape = instance.shape();
+            var cache = expr.cache;
+            var entry = cache == null ? -1 : cache.find(shape);
+            if (entry < 0) {
+                var added = PropertyCache.set(cache, shape, expr.name.lexeme());
+                expr.cache = PropertyCache.kept(cache, added);
+                cache = added;
+                entry = cache.find(shape);
+            }
+
+            instance.set(this, expr.name, cache.slot(entry), cache.transition(entry), value);
+        }
+
+        return value;
+    }
+
+    @Override
+    public Object visitSuperExpr(Expr.Super expr) {
+        var method = superMethod(expr);
+        var receiver = (LoxInstance)environment.getAt(expr.thisDepth, "this");
+        allocate(expr.method, Budget.FUNCTION_SIZE);
+        return new BoundMethod(receiver, method);
+    }
+
+    @Override
+    public Object visitThisExpr(Expr.This expr) {
+        return lookUpVariable(expr.keyword, expr.depth);
+    }
+
+    private static LoxInstance instance(Object object, Token name) {
+        if (!(object instanceof LoxInstance instance)) {
+            throw new RuntimeError(name, "Only instances have properties.");
+        }
+
+        return instance;
+    }
+
+    // Looks up a property for a get whose inline cache has no entry for shape, and returns a cache that has one.
+    private static PropertyCache missedGet(Expr.Get expr, Shape shape) {
+        var cache = expr.cache;
+        var added = PropertyCache.get(cache, shape, expr.name.lexeme());
+        if (added == null) {
+            throw new RuntimeError(expr.name, String.format("Undefined property \"%s\".", expr.name.lexeme()));
+        }
+
+        expr.cache = PropertyCache.kept(cache, added);
+        return added;
+    }
+
+    private Function superMethod(Expr.Super expr) {
+        var superclass = (LoxClass)environment.getAt(expr.depth, "super");
+        var method = superclass.findMethod(expr.method.lexeme());
+        if (method == null) {
+            throw new RuntimeError(
+                    expr.method,
+                    String.format("Undefined property \"%s\".", expr.method.lexeme()));
+        }
+
+        return method;
     }
 
     @Override
@@ -222,13 +448,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.depth);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        var distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme());
+    private Object lookUpVariable(Token name, int depth) {
+        if (depth >= 0) {
+            return environment.getAt(depth, name.lexeme());
         } else {
             return globals.get(name);
         }
@@ -267,26 +492,66 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             return false;
         }
 
+        if (a instanceof CharSequence x && b instanceof CharSequence y) {
+            return Rope.equal(x, y);
+        }
+
         // Beware: this makes NaN equal to NaN! NaN should not be equal to anything else per IEEE 754.
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) {
             return "nil";
         }
 
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
+        if (object instanceof Double number) {
+            if (isPrintedWhole(number)) {
+                return Long.toString(number.longValue());
             }
-            return text;
+            // Negative zero is the only whole number left that Double.toString() doesn't write with an exponent. Since
+            // JDK 19 that gives the shortest digits which read back as the same number, so there's no need for a
+            // formatter of our own.
+            return number == 0 ? "-0" : number.toString();
         }
 
         return object.toString();
     }
 
+    // Whether a number is printed as a whole number, without the ".0" Double.toString() gives it. Those from 10^7 up
+    // are printed with an exponent instead, and negative zero as -0.
+    static boolean isPrintedWhole(double number) {
+        return number == (long)number && Math.abs(number) < 1e7 && (number != 0 || 1 / number > 0);
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        LoxClass superclass = null;
+        if (stmt.superclass != null) {
+            var value = stmt.superclass.accept(this);
+            if (!(value instanceof LoxClass loxClass)) {
+                throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+            }
+            superclass = loxClass;
+        }
+
+        allocate(stmt.name, Budget.CLASS_SIZE + Budget.FUNCTION_SIZE * stmt.methods.size() + Budget.VARIABLE_SIZE);
+        var closure = environment;
+        if (superclass != null) {
+            closure = new Environment(environment);
+            closure.define("super", superclass);
+        }
+
+        var methods = new HashMap<String, Function>();
+        for (var method : stmt.methods) {
+            var name = method.name.lexeme();
+            methods.put(name, new Function(method, closure, name.equals("init")));
+        }
+
+        environment.define(stmt.name.lexeme(), new LoxClass(stmt.name.lexeme(), superclass, methods));
+        return null;
+    }
+
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
         stmt.expression.accept(this);
@@ -295,6 +560,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
+        allocate(stmt.name, Budget.FUNCTION_SIZE + Budget.VARIABLE_SIZE);
         var function = new Function(stmt, environment);
         environment.define(stmt.name.lexeme(), function);
         return null;
@@ -313,7 +579,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
-        System.out.println(stringify(stmt.expression.accept(this)));
+        var value = stmt.expression.accept(this);
+        if (value instanceof Double number) {
+            out.println(number.doubleValue());
+        } else {
+            out.println(stringify(value));
+        }
         return null;
     }
 
@@ -323,9 +594,22 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new Return(value);
     }
 
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        var value = stmt.value == null ? null : stmt.value.accept(this);
+        if (producer == null) {
+            // The resolver only allows yield in functions, which makes them generators.
+            throw new RuntimeError(stmt.keyword, "Can't yield outside of a generator.");
+        }
+
+        producer.yield(value);
+        return null;
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
         var value = stmt.initializer == null ? null : stmt.initializer.accept(this);
+        allocate(stmt.name, Budget.VARIABLE_SIZE);
         environment.define(stmt.name.lexeme(), value);
         return null;
     }
@@ -333,19 +617,56 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(stmt.condition.accept(this))) {
+            burn(stmt.keyword);
             stmt.body.accept(this);
         }
 
         return null;
     }
 
+    @Override
+    public Void visitParallelForStmt(Stmt.ParallelFor stmt) {
+        var start = stmt.start.accept(this);
+        var end = stmt.end.accept(this);
+        checkNumberOperands(stmt.operator, start, end);
+
+        var step = stmt.step.accept(this);
+        if (!(step instanceof Double increment) || !(increment > 0)) {
+            throw new RuntimeError(stmt.keyword, "The step of a parallel for must be a positive number.");
+        }
+
+        // The loop variable takes the values start + k * step, which can differ in the last digits from adding up the
+        // step one iteration at a time.
+        var first = (double)start;
+        var span = ((double)end - first) / increment;
+        long count;
+        if (stmt.operator.type() == TokenType.LESS) {
+            count = span > 0 ? (long)Math.ceil(span) : 0;
+        } else {
+            count = span >= 0 ? (long)Math.floor(span) + 1 : 0;
+        }
+
+        // Every iteration gets a frame of its own, on the interpreter of whichever worker runs it.
+        var enclosing = environment;
+        var body = List.of(stmt.body);
+        var name = stmt.variable.lexeme();
+        Parallel.forRange(this, count, (worker, index) -> {
+            worker.burn(stmt.keyword);
+            worker.allocate(stmt.keyword, Budget.ENVIRONMENT_SIZE + Budget.VARIABLE_SIZE);
+            var iteration = new Environment(enclosing);
+            iteration.define(name, first + index * increment);
+            worker.executeBlock(body, iteration);
+        });
+
+        return null;
+    }
+
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         var value = expr.value.accept(this);
 
-        var distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.depth >= 0) {
+            environment.assignAt(expr.depth, expr.name, value);
         } else {
             globals.assign(expr.name, value);
         }
@@ -355,10 +676,57 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        // Blocks have no token to report an error at, so this only gets checked at the next allocation that has one.
+        allocated += Budget.ENVIRONMENT_SIZE;
         executeBlock(stmt.statements, new Environment(environment));
         return null;
     }
 
+    // Counts a loop iteration or call against the budget. Without a budget the fuel never runs out, in practice.
+    private void burn(Token token) {
+        if (fuel-- == 0) {
+            fuel = budget.refill(token) - 1;
+        }
+    }
+
+    // Calls a function of the script from outside of it, like -n does for every line of input. The call counts against
+    // the budget as if it was made where the function was declared.
+    Object call(Function function, List<Object> arguments) {
+        var token = function.declaration().name;
+        burn(token);
+        allocate(token, Budget.ENVIRONMENT_SIZE + Budget.VARIABLE_SIZE * function.arity());
+        return function.call(this, arguments);
+    }
+
+    // Counts memory allocated by the script against the budget. Natives pass a null token.
+    void allocate(Token token, long bytes) {
+        allocated += bytes;
+        if (allocated >= allocationBatch) {
+            var batch = allocated;
+            allocated = 0;
+            budget.allocate(token, batch);
+        }
+    }
+
+    // Gives back the fuel this interpreter hasn't burnt, so that others sharing the budget can have it while this one
+    // is waiting, like a generator between values.
+    void returnFuel() {
+        if (budget != null && fuel > 0) {
+            budget.refund(fuel);
+            fuel = 0;
+        }
+    }
+
+    // Returns the fuel and reports the allocations that haven't been reported yet, once the run is over, or once a
+    // task, generator, actor or parallel worker is done.
+    void finish() {
+        returnFuel();
+        if (budget != null && allocated > 0) {
+            budget.record(allocated);
+            allocated = 0;
+        }
+    }
+
     void executeBlock(List<Stmt> statements, Environment environment) {
         var previous = this.environment;
         try {
@@ -371,8 +739,4 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             this.environment = previous;
         }
     }
-
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
-    }
 }
@@ -0,0 +1,276 @@
+package me.elinge.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A Java method that scripts can call like a function: a static method, or an instance method with the object it is
+// called on as the first argument. A program embedding jlox makes them with of() and passes them in as globals, and
+// scripts can get the ones in the ALLOWED list themselves with the native java(), like java("Math.sqrt").
+//
+// The method is looked up once, and its handle adapted to take the Lox arguments in an Object[] and return a Lox
+// value, so a call doesn't go through reflection. Lox numbers are converted to any primitive number type, whole numbers
+// only for the integral ones, strings to String or CharSequence, and other values are passed as they are. Numbers,
+// chars and void returned come back as Lox numbers, strings and nil.
+public final class JavaFunction implements Callable {
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    // The methods scripts may get with java(), which only compute something from their arguments. Resolved the first
+    // time a script asks for one.
+    private static final Map<String, Signature> ALLOWED = Map.ofEntries(
+            allow("Math.abs", Math.class, "abs", double.class),
+            allow("Math.sqrt", Math.class, "sqrt", double.class),
+            allow("Math.cbrt", Math.class, "cbrt", double.class),
+            allow("Math.pow", Math.class, "pow", double.class, double.class),
+            allow("Math.exp", Math.class, "exp", double.class),
+            allow("Math.log", Math.class, "log", double.class),
+            allow("Math.log10", Math.class, "log10", double.class),
+            allow("Math.sin", Math.class, "sin", double.class),
+            allow("Math.cos", Math.class, "cos", double.class),
+            allow("Math.tan", Math.class, "tan", double.class),
+            allow("Math.atan2", Math.class, "atan2", double.class, double.class),
+            allow("Math.hypot", Math.class, "hypot", double.class, double.class),
+            allow("Math.floor", Math.class, "floor", double.class),
+            allow("Math.ceil", Math.class, "ceil", double.class),
+            allow("Math.round", Math.class, "round", double.class),
+            allow("Math.min", Math.class, "min", double.class, double.class),
+            allow("Math.max", Math.class, "max", double.class, double.class),
+            allow("Math.random", Math.class, "random"),
+            allow("Double.parseDouble", Double.class, "parseDouble", String.class),
+            allow("Long.toHexString", Long.class, "toHexString", long.class),
+            allow("String.length", String.class, "length"),
+            allow("String.charAt", String.class, "charAt", int.class),
+            allow("String.indexOf", String.class, "indexOf", String.class),
+            allow("String.substring", String.class, "substring", int.class, int.class),
+            allow("String.contains", String.class, "contains", CharSequence.class),
+            allow("String.startsWith", String.class, "startsWith", String.class),
+            allow("String.endsWith", String.class, "endsWith", String.class),
+            allow("String.replace", String.class, "replace", CharSequence.class, CharSequence.class),
+            allow("String.toUpperCase", String.class, "toUpperCase"),
+            allow("String.toLowerCase", String.class, "toLowerCase"),
+            allow("String.strip", String.class, "strip"),
+            allow("String.hashCode", String.class, "hashCode"));
+    private static final Map<String, JavaFunction> resolved = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final int arity;
+    // Takes the arguments as an Object[] and returns an Object.
+    private final MethodHandle handle;
+
+    private record Signature(Class<?> owner, String name, Class<?>[] parameterTypes) {}
+
+    private JavaFunction(String name, int arity, MethodHandle handle) {
+        this.name = name;
+        this.arity = arity;
+        this.handle = handle;
+    }
+
+    // The public method of owner with that name and those parameter types.
+    public static JavaFunction of(Class<?> owner, String name, Class<?>... parameterTypes)
+            throws NoSuchMethodException, IllegalAccessException {
+        return of(owner.getMethod(name, parameterTypes));
+    }
+
+    public static JavaFunction of(Method method) throws IllegalAccessException {
+        var name = method.getDeclaringClass().getSimpleName() + "." + method.getName();
+        return new JavaFunction(name, arity(method), adapt(MethodHandles.publicLookup().unreflect(method)));
+    }
+
+    // The native java(name).
+    static Object allowed(Object name) {
+        var key = Rope.string(name);
+        var signature = key == null ? null : ALLOWED.get(key);
+        if (signature == null) {
+            throw new NativeError(String.format("No Java method \"%s\" to call.", name));
+        }
+
+        return resolved.computeIfAbsent(key, k -> {
+            try {
+                var method = signature.owner().getMethod(signature.name(), signature.parameterTypes());
+                return new JavaFunction(k, arity(method), adapt(lookup.unreflect(method)));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static Map.Entry<String, Signature> allow(
+            String name,
+            Class<?> owner,
+            String method,
+            Class<?>... parameterTypes) {
+        return Map.entry(name, new Signature(owner, method, parameterTypes));
+    }
+
+    private static int arity(Method method) {
+        return method.getParameterCount() + (Modifier.isStatic(method.getModifiers()) ? 0 : 1);
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Object result;
+        try {
+            result = (Object)handle.invokeExact(arguments.toArray());
+        } catch (NativeError error) {
+            throw error;
+        } catch (OutOfMemoryError error) {
+            // What the method tried to make is garbage by now, so the script can be told like any other.
+            throw new NativeError("Script ran out of memory.");
+        } catch (Error error) {
+            throw error;
+        } catch (ClassCastException e) {
+            throw new NativeError(String.format("Wrong type of argument to %s.", name));
+        } catch (Throwable e) {
+            throw new NativeError(String.format("%s failed: %s", name, e));
+        }
+
+        // Strings are all a method can make that grow with its arguments, and they count like the ones scripts make.
+        if (result instanceof String string) {
+            interpreter.allocate(null, Budget.STRING_SIZE + Budget.CHAR_SIZE * string.length());
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<java fn %s>", name);
+    }
+
+    // Puts converters in front of every parameter and after the return value, and then spreads an Object[] over the
+    // parameters.
+    private static MethodHandle adapt(MethodHandle handle) {
+        var type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            // Narrowing a double to a float, an int to a short or byte, or casting an Object to the parameter type.
+            var converter = MethodHandles.explicitCastArguments(
+                    converter(type.parameterType(i)),
+                    MethodType.methodType(type.parameterType(i), Object.class));
+            handle = MethodHandles.filterArguments(handle, i, converter);
+        }
+
+        var returnType = type.returnType();
+        if (returnType == char.class) {
+            handle = MethodHandles.filterReturnValue(handle, find("fromChar", Object.class, char.class));
+        } else if (returnType.isPrimitive() && returnType != boolean.class && returnType != void.class) {
+            // Widened to a double, which is then boxed to a Lox number.
+            handle = handle.asType(handle.type().changeReturnType(double.class));
+        } else if (!returnType.isPrimitive()) {
+            handle = MethodHandles.filterReturnValue(
+                    handle.asType(handle.type().changeReturnType(Object.class)),
+                    find("fromObject", Object.class, Object.class));
+        }
+
+        // A void method returns null, which is nil.
+        return handle.asType(MethodType.genericMethodType(type.parameterCount()))
+                .asSpreader(Object[].class, type.parameterCount());
+    }
+
+    private static MethodHandle converter(Class<?> type) {
+        if (type == double.class || type == float.class) {
+            return find("toDouble", double.class, Object.class);
+        }
+        if (type == long.class) {
+            return find("toLong", long.class, Object.class);
+        }
+        if (type == int.class || type == short.class || type == byte.class) {
+            return find("toInt", int.class, Object.class);
+        }
+        if (type == boolean.class) {
+            return find("toBoolean", boolean.class, Object.class);
+        }
+        if (type == char.class) {
+            return find("toChar", char.class, Object.class);
+        }
+        if (type == String.class || type == CharSequence.class) {
+            return find("toJavaString", String.class, Object.class);
+        }
+
+        return find("toJava", Object.class, Object.class);
+    }
+
+    private static MethodHandle find(String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return lookup.findStatic(JavaFunction.class, name, MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static double toDouble(Object value) {
+        if (!(value instanceof Double number)) {
+            throw new NativeError("Expected a number.");
+        }
+
+        return number;
+    }
+
+    private static long toLong(Object value) {
+        if (!(value instanceof Double number) || number != Math.floor(number) || Math.abs(number) >= 0x1p63) {
+            throw new NativeError("Expected a whole number.");
+        }
+
+        return number.longValue();
+    }
+
+    private static int toInt(Object value) {
+        if (!(value instanceof Double number) || number != Math.floor(number) || Math.abs(number) > Integer.MAX_VALUE) {
+            throw new NativeError("Expected a whole number.");
+        }
+
+        return number.intValue();
+    }
+
+    private static boolean toBoolean(Object value) {
+        if (!(value instanceof Boolean bool)) {
+            throw new NativeError("Expected true or false.");
+        }
+
+        return bool;
+    }
+
+    private static char toChar(Object value) {
+        var string = Rope.string(value);
+        if (string == null || string.length() != 1) {
+            throw new NativeError("Expected a string of one character.");
+        }
+
+        return string.charAt(0);
+    }
+
+    private static String toJavaString(Object value) {
+        var string = Rope.string(value);
+        if (string == null) {
+            throw new NativeError("Expected a string.");
+        }
+
+        return string;
+    }
+
+    private static Object toJava(Object value) {
+        return value instanceof Rope rope ? rope.toString() : value;
+    }
+
+    private static Object fromChar(char value) {
+        return String.valueOf(value);
+    }
+
+    private static Object fromObject(Object value) {
+        if (value instanceof Number number && !(value instanceof Double)) {
+            return number.doubleValue();
+        }
+        if (value instanceof Character character) {
+            return character.toString();
+        }
+
+        return value;
+    }
+}
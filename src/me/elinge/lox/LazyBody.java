@@ -0,0 +1,90 @@
+package me.elinge.lox;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+
+// The body of a function that has only been brace-matched so far. It is parsed and resolved when the function is first
+// called, so that startup only pays for the code that runs. Syntax and resolution errors in it are reported at that
+// point too, to the reporter of whoever called it. Only top-level functions get one, so resolving them doesn't depend
+// on any enclosing scope.
+class LazyBody extends AbstractList<Stmt> {
+    private final Token name;
+    private final List<Token> params;
+    private List<Token> tokens;
+    private volatile List<Stmt> statements;
+    private boolean failed = false;
+    private volatile boolean generator = false;
+
+    LazyBody(Token name, List<Token> params, List<Token> tokens) {
+        this.name = name;
+        this.params = params;
+        this.tokens = tokens;
+    }
+
+    // The tokens of the body, or null once it has been parsed.
+    synchronized List<Token> tokens() {
+        return tokens;
+    }
+
+    List<Stmt> statements(ErrorReporter reporter) {
+        var statements = this.statements;
+        if (statements == null) {
+            statements = parse(reporter);
+        }
+
+        return statements;
+    }
+
+    private List<Stmt> parsed() {
+        var statements = this.statements;
+        if (statements == null) {
+            throw new IllegalStateException("Function body hasn't been parsed yet.");
+        }
+
+        return statements;
+    }
+
+    private synchronized List<Stmt> parse(ErrorReporter reporter) {
+        if (statements != null) {
+            return statements;
+        }
+
+        if (!failed) {
+            var bodyReporter = reporter.child();
+            var body = new Parser(tokens, bodyReporter).parseBody();
+            if (!bodyReporter.hadError) {
+                generator = new Resolver(bodyReporter).resolveFunction(params, body);
+            }
+
+            failed = bodyReporter.hadError;
+            if (!failed) {
+                tokens = null;
+                statements = body;
+                return body;
+            }
+        }
+
+        throw new RuntimeError(name, String.format("Function \"%s\" has errors.", name.lexeme()));
+    }
+
+    // Whether the function turned out to be a generator, once the body has been parsed.
+    boolean generator() {
+        return generator;
+    }
+
+    @Override
+    public Stmt get(int index) {
+        return parsed().get(index);
+    }
+
+    @Override
+    public int size() {
+        return parsed().size();
+    }
+
+    @Override
+    public Iterator<Stmt> iterator() {
+        return parsed().iterator();
+    }
+}
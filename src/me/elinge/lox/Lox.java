@@ -1,96 +1,477 @@
 package me.elinge.lox;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    // Set up once the options are known.
+    private static Output output;
+    private static ErrorReporter reporter;
+    private static Interpreter interpreter;
+    private static int outputBuffer = Output.DEFAULT_SIZE;
+    private static boolean asyncOutput = false;
+    private static boolean eachLine = false;
+    private static boolean streaming = false;
+    private static boolean lazy = false;
+    private static ProgramCache cache = null;
+    private static boolean timing = false;
+    private static Path loadSnapshot = null;
+    private static Path saveSnapshot = null;
+    private static Path daemonSocket = null;
+    private static Path batch = null;
+    private static Path batchOutput = null;
+    private static int jobs = Runtime.getRuntime().availableProcessors();
+    private static long fuel = Long.MAX_VALUE;
+    private static Duration timeout = null;
+    private static long memory = Long.MAX_VALUE;
+    // Every Lox call takes a dozen or so Java calls, so the default stack of a thread only fits a few hundred of them.
+    // The threads that run scripts get a much bigger one, which is only reserved address space until it gets used.
+    static long stackSize = 64L << 20;
 
-    public static void main(String[] args) throws IOException {
-        if (args.length == 0) {
+    // A file that was scanned and parsed ahead of its turn, along with the syntax errors it had. Files found in the
+    // cache are already resolved.
+    private record ParsedFile(
+            List<Stmt> statements,
+            boolean cached,
+            String cacheKey,
+            String errors,
+            boolean hadError,
+            long nanos,
+            IOException failure) {}
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        var files = new ArrayList<String>();
+        for (var arg : args) {
+            if (arg.equals("-n")) {
+                eachLine = true;
+            } else if (arg.equals("--stream")) {
+                streaming = true;
+            } else if (arg.equals("--lazy")) {
+                lazy = true;
+            } else if (arg.equals("--cache")) {
+                cache = new ProgramCache(ProgramCache.defaultDirectory());
+            } else if (arg.startsWith("--cache=")) {
+                cache = new ProgramCache(Path.of(arg.substring("--cache=".length())));
+            } else if (arg.equals("--timing")) {
+                timing = true;
+            } else if (arg.startsWith("--load-snapshot=")) {
+                loadSnapshot = Path.of(arg.substring("--load-snapshot=".length()));
+            } else if (arg.startsWith("--save-snapshot=")) {
+                saveSnapshot = Path.of(arg.substring("--save-snapshot=".length()));
+            } else if (arg.startsWith("--daemon=")) {
+                daemonSocket = Path.of(arg.substring("--daemon=".length()));
+            } else if (arg.startsWith("--batch=")) {
+                batch = Path.of(arg.substring("--batch=".length()));
+            } else if (arg.startsWith("--batch-output=")) {
+                batchOutput = Path.of(arg.substring("--batch-output=".length()));
+            } else if (arg.startsWith("--jobs=")) {
+                jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+            } else if (arg.startsWith("--fuel=")) {
+                fuel = Long.parseLong(arg.substring("--fuel=".length()));
+            } else if (arg.startsWith("--timeout=")) {
+                timeout = Duration.ofMillis(Long.parseLong(arg.substring("--timeout=".length())));
+            } else if (arg.startsWith("--memory=")) {
+                memory = parseSize(arg.substring("--memory=".length()));
+            } else if (arg.startsWith("--output-buffer=")) {
+                outputBuffer = (int)parseSize(arg.substring("--output-buffer=".length()));
+            } else if (arg.equals("--async-output")) {
+                asyncOutput = true;
+            } else if (arg.startsWith("--stack=")) {
+                stackSize = parseSize(arg.substring("--stack=".length()));
+            } else {
+                files.add(arg);
+            }
+        }
+
+        var main = new FutureTask<Void>(() -> {
+            start(files);
+            return null;
+        });
+        newThread(main, "main").start();
+        try {
+            main.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException error) {
+                throw error;
+            }
+            if (e.getCause() instanceof RuntimeException error) {
+                throw error;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // A thread for running scripts, with a stack of stackSize.
+    static Thread newThread(Runnable runnable, String name) {
+        return new Thread(null, runnable, name, stackSize);
+    }
+
+    private static void start(List<String> files) throws IOException, InterruptedException {
+        if (daemonSocket != null) {
+            Daemon.serve(daemonSocket);
+            return;
+        }
+
+        if (batch != null) {
+            System.exit(Batch.run(batch, jobs, batchOutput));
+        }
+
+        // Scripts print to standard output through a channel of their own rather than System.out, which writes out
+        // every line as soon as it's printed.
+        output = new Output(new FileOutputStream(FileDescriptor.out).getChannel(), outputBuffer, asyncOutput);
+        reporter = new ErrorReporter(System.err, output);
+        interpreter = new Interpreter(output, reporter);
+        try {
+            runMain(files);
+        } finally {
+            output.flush();
+        }
+    }
+
+    private static void runMain(List<String> files) throws IOException, InterruptedException {
+        // Every file gets a new budget, as does every line at the prompt and the -n line loop.
+        interpreter.limit(budget());
+
+        // Start from the globals some earlier run left behind, instead of running its files again.
+        if (loadSnapshot != null) {
+            try {
+                Snapshot.restore(interpreter, loadSnapshot);
+            } catch (IOException e) {
+                System.err.printf("Can't load snapshot %s: %s%n", loadSnapshot, e.getMessage());
+                System.exit(74); // EX_IOERR
+            }
+        }
+
+        if (files.isEmpty() && eachLine) {
+            System.err.println("-n needs a script that defines eachLine(line).");
+            System.exit(64); // EX_USAGE
+        }
+
+        if (files.isEmpty()) {
             runPrompt();
+        } else if (streaming) {
+            for (var file : files) {
+                interpreter.limit(budget());
+                runStreaming(readFile(file));
+                exitOnError();
+            }
         } else {
-            for (var file : args) {
-                runFile(file);
+            runFiles(files);
+        }
+
+        if (eachLine) {
+            runEachLine();
+        }
+
+        if (saveSnapshot != null) {
+            try {
+                Snapshot.save(interpreter.globals, saveSnapshot);
+            } catch (IOException e) {
+                reporter.flushOutput();
+                System.err.printf("Can't save snapshot %s: %s%n", saveSnapshot, e.getMessage());
+                System.exit(74); // EX_IOERR
             }
         }
     }
 
-    private static void runFile(String path) throws IOException {
+    // A new budget for a run, or null if there are no limits. Every run gets its own, so a timeout counts from its
+    // start.
+    private static Budget budget() {
+        if (fuel == Long.MAX_VALUE && timeout == null && memory == Long.MAX_VALUE) {
+            return null;
+        }
+
+        return new Budget(fuel, timeout, memory);
+    }
+
+    // A number of bytes, optionally followed by k, m or g like -Xmx.
+    private static long parseSize(String size) {
+        var units = "kmg".indexOf(Character.toLowerCase(size.charAt(size.length() - 1)));
+        if (units < 0) {
+            return Long.parseLong(size);
+        }
+
+        return Long.parseLong(size.substring(0, size.length() - 1)) << (10 * (units + 1));
+    }
+
+    static String readFile(String path) throws IOException {
         var bytes = Files.readAllBytes(Path.of(path));
-        run(new String(bytes, Charset.defaultCharset()));
-        if (hadError) {
+        return new String(bytes, Charset.defaultCharset());
+    }
+
+    // Scanning and parsing a file doesn't depend on any other, so that is done for all the files at once. Everything
+    // else happens one file at a time in the order given, and the syntax errors of each file are held back until its
+    // turn, so the output is the same as if the files were processed one after another. The parser limits nesting to
+    // what fits in stackSize, so it runs on threads with that stack too.
+    private static void runFiles(List<String> paths) throws IOException, InterruptedException {
+        var pool = Executors.newFixedThreadPool(
+                Math.min(paths.size(), Runtime.getRuntime().availableProcessors()),
+                runnable -> newThread(runnable, "lox-parse"));
+        var files = new ArrayList<Future<ParsedFile>>();
+        for (var path : paths) {
+            files.add(pool.submit(() -> parseFile(path)));
+        }
+        pool.shutdown();
+
+        for (int i = 0; i < paths.size(); i++) {
+            var file = parsed(files.get(i));
+            if (file.failure() != null) {
+                throw file.failure();
+            }
+
+            reporter.flushOutput();
+            System.err.print(file.errors());
+            reporter.hadError = file.hadError();
+
+            var start = System.nanoTime();
+            var runnable = file.cached() || resolve(file.statements());
+            if (runnable && cache != null && !file.cached()) {
+                cache.store(file.cacheKey(), file.statements());
+            }
+
+            if (timing) {
+                reporter.flushOutput();
+                System.err.printf(
+                        "[timing] %s: front end took %.3f ms%s%n",
+                        paths.get(i),
+                        (file.nanos() + System.nanoTime() - start) / 1e6,
+                        file.cached() ? " (cached)" : "");
+            }
+
+            if (runnable) {
+                interpreter.limit(budget());
+                interpreter.interpret(file.statements());
+            }
+            exitOnError();
+        }
+    }
+
+    private static ParsedFile parsed(Future<ParsedFile> file) throws InterruptedException {
+        try {
+            return file.get();
+        } catch (ExecutionException e) {
+            // parseFile() returns the failures it expects.
+            if (e.getCause() instanceof RuntimeException error) {
+                throw error;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static ParsedFile parseFile(String path) {
+        try {
+            var start = System.nanoTime();
+            var source = readFile(path);
+
+            String cacheKey = null;
+            if (cache != null) {
+                cacheKey = cache.key(source, lazy, stackSize);
+                var statements = cache.load(cacheKey);
+                if (statements != null) {
+                    return new ParsedFile(statements, true, cacheKey, "", false, System.nanoTime() - start, null);
+                }
+            }
+
+            var errors = new ByteArrayOutputStream();
+            var fileReporter = new ErrorReporter(new PrintStream(errors));
+            var tokens = new Scanner(source, fileReporter).scanTokens();
+            var statements = new Parser(tokens, lazy, fileReporter).parse();
+
+            return new ParsedFile(
+                    statements,
+                    false,
+                    cacheKey,
+                    errors.toString(),
+                    fileReporter.hadError,
+                    System.nanoTime() - start,
+                    null);
+        } catch (IOException e) {
+            return new ParsedFile(null, false, null, "", false, 0, e);
+        }
+    }
+
+    // Runs a program on an interpreter of its own, as if it was the only file given, and returns the exit code.
+    static int runIsolated(String source, PrintStream out, PrintStream err) {
+        var output = new Output(Channels.newChannel(out), outputBuffer, false);
+        try {
+            return runIsolated(source, output, new ErrorReporter(err, output));
+        } finally {
+            output.flush();
+        }
+    }
+
+    private static int runIsolated(String source, Output out, ErrorReporter reporter) {
+        var tokens = new Scanner(source, reporter).scanTokens();
+        var statements = new Parser(tokens, lazy, reporter).parse();
+
+        if (!reporter.hadError) {
+            new Resolver(reporter).resolve(statements);
+        }
+
+        if (!reporter.hadError) {
+            var interpreter = new Interpreter(out, reporter);
+            interpreter.limit(budget());
+            interpreter.interpret(statements);
+        }
+
+        if (reporter.hadError) {
+            return 65; // EX_DATAERR
+        }
+        if (reporter.hadRuntimeError) {
+            return 70; // EX_SOFTWARE
+        }
+        return 0;
+    }
+
+    private static void exitOnError() {
+        if (reporter.hadError || reporter.hadRuntimeError) {
+            output.flush();
+        }
+        if (reporter.hadError) {
             System.exit(65); // EX_DATAERR
         }
-        if (hadRuntimeError) {
+        if (reporter.hadRuntimeError) {
             System.exit(70); // EX_SOFTWARE
         }
     }
 
+    // With -n, like awk: once the files have run, their function eachLine(line) is called for every line of standard
+    // input, and then endInput() if they defined one. The script is only compiled once, so a line costs one call.
+    // Standard input is read in large chunks like any file, and what is printed stays in the output buffer until it is
+    // full, so in a pipeline it comes out in chunks rather than line by line.
+    private static void runEachLine() {
+        var eachLine = function("eachLine", 1);
+        var endInput = function("endInput", 0);
+        if (eachLine == null) {
+            reporter.flushOutput();
+            System.err.println("-n needs a script that defines eachLine(line).");
+            System.exit(64); // EX_USAGE
+        }
+
+        // Running out of memory on a line that was read is reported at eachLine(), which it was read for, and ends the
+        // script like any other runtime error. Only a failure to read is an I/O error.
+        var input = LoxFile.standardInput();
+        var name = eachLine.declaration().name;
+        interpreter.limit(budget());
+        try {
+            var line = LoxFile.readLine(interpreter, input, name);
+            while (line != null) {
+                interpreter.call(eachLine, List.of(line));
+                line = LoxFile.readLine(interpreter, input, name);
+            }
+
+            if (endInput != null) {
+                interpreter.call(endInput, List.of());
+            }
+        } catch (RuntimeError error) {
+            reporter.runtimeError(error);
+        } catch (NativeError error) {
+            reporter.flushOutput();
+            System.err.println(error.getMessage());
+            System.exit(74); // EX_IOERR
+        }
+        exitOnError();
+    }
+
+    // The global function of that name if there is one that takes that many arguments.
+    private static Function function(String name, int arity) {
+        var value = interpreter.globals.variables().get(name);
+        if (value instanceof Function function && function.arity() == arity) {
+            return function;
+        }
+
+        return null;
+    }
+
     private static void runPrompt() throws IOException {
         var input = new InputStreamReader(System.in);
         var reader = new BufferedReader(input);
 
         while (true) {
-            System.out.print("> ");
+            output.print("> ");
+            output.flush();
             var line = reader.readLine();
             if (line == null) {
                 break;
             }
+            interpreter.limit(budget());
             run(line);
-            hadError = false;
-            hadRuntimeError = false;
+            reporter.hadError = false;
+            reporter.hadRuntimeError = false;
         }
     }
 
     private static void run(String source) {
-        var scanner = new Scanner(source);
+        var scanner = new Scanner(source, reporter);
         var tokens = scanner.scanTokens();
 
-        var parser = new Parser(tokens);
-        var statements = parser.parse();
+        var parser = new Parser(tokens, lazy, reporter);
+        execute(parser.parse());
+    }
+
+    private static void execute(List<Stmt> statements) {
+        if (resolve(statements)) {
+            interpreter.interpret(statements);
+        }
+    }
 
+    // Returns whether the program can be run.
+    private static boolean resolve(List<Stmt> statements) {
         // Stop if there was a syntax error.
-        if (hadError) {
-            return;
+        if (reporter.hadError) {
+            return false;
         }
 
-        var resolver = new Resolver(interpreter);
+        var resolver = new Resolver(reporter);
         resolver.resolve(statements);
 
         // Stop if there was a resolution error.
-        if (hadError) {
-            return;
-        }
-
-        interpreter.interpret(statements);
+        return !reporter.hadError;
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
-    }
+    // Like run(), but each top-level declaration is executed as soon as it has been parsed and resolved, and then
+    // dropped. Output starts right away and the whole program never has to be in memory. Everything before the first
+    // error has already run by the time it is found, so after a syntax or resolution error nothing else runs but the
+    // rest of the source is still parsed to report further syntax errors, and a runtime error stops everything.
+    private static void runStreaming(String source) {
+        var parser = new Parser(new Scanner(source, reporter), lazy, reporter);
+        var resolver = new Resolver(reporter);
 
-    private static void report(int line, String where, String message) {
-        System.err.printf("[line %d] Error%s: %s%n", line, where, message);
-        hadError = true;
-    }
+        while (parser.hasNext() && !reporter.hadRuntimeError) {
+            var statement = parser.next();
+            if (reporter.hadError) {
+                continue;
+            }
 
-    static void error(Token token, String message) {
-        if (token.type() == TokenType.EOF) {
-            report(token.line(), " at the end", message);
-        } else {
-            report(token.line(), " at '" + token.lexeme() + "'", message);
-        }
-    }
+            var statements = List.of(statement);
+            resolver.resolve(statements);
+            if (reporter.hadError) {
+                continue;
+            }
 
-    static void runtimeError(RuntimeError error) {
-        System.err.printf("%s\n[line %d]%n", error.getMessage(), error.token.line());
-        hadRuntimeError = true;
+            interpreter.interpret(statements);
+        }
     }
 }
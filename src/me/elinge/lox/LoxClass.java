@@ -0,0 +1,58 @@
+package me.elinge.lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A class declared by a script. Calling it makes an instance and runs its init method on it, if it has one. The methods
+// inherited from the superclass are copied in when the class is made, so finding a method is a single lookup however
+// deep the hierarchy is, and the methods never change after that.
+final class LoxClass implements Callable {
+    final String name;
+    // The shape every instance starts out with.
+    final Shape shape = new Shape(this);
+    private final Map<String, Function> methods;
+    private final Function initializer;
+
+    LoxClass(String name, LoxClass superclass, Map<String, Function> methods) {
+        this.name = name;
+        this.methods = new HashMap<>();
+        if (superclass != null) {
+            this.methods.putAll(superclass.methods);
+        }
+        this.methods.putAll(methods);
+        this.initializer = this.methods.get("init");
+    }
+
+    // The method of that name, or null if the class has none.
+    Function findMethod(String name) {
+        return methods.get(name);
+    }
+
+    // All the methods, inherited ones included, for saving the class in a snapshot.
+    Map<String, Function> methods() {
+        return methods;
+    }
+
+    @Override
+    public int arity() {
+        return initializer == null ? 0 : initializer.arity();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        interpreter.allocate(null, Budget.INSTANCE_SIZE);
+        var instance = new LoxInstance(this);
+        if (initializer != null) {
+            interpreter.allocate(null, Budget.ENVIRONMENT_SIZE + Budget.VARIABLE_SIZE * (initializer.arity() + 1));
+            initializer.call(interpreter, instance, arguments);
+        }
+
+        return instance;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
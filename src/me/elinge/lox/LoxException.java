@@ -0,0 +1,16 @@
+package me.elinge.lox;
+
+// A program embedded through Program or the script engine that failed to compile or to run.
+public class LoxException extends Exception {
+    private final int line;
+
+    LoxException(String message, int line) {
+        super(message);
+        this.line = line;
+    }
+
+    // The line the (first) error was on, or -1 if it isn't known.
+    public int getLine() {
+        return line;
+    }
+}
@@ -0,0 +1,313 @@
+package me.elinge.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+
+// A file opened by a script, for reading with open() or for writing with create() or append(). Files are read and
+// written as UTF-8 through a FileChannel and buffers of BUFFER_SIZE that are used over and over, and reading only
+// decodes as much as the next line or chunk needs, so a script can go through a file of any size in constant memory.
+// What is written goes through an Output, so it is only written to the file when the buffer is full or the file is
+// closed. A file that is dropped without closing it is closed once it has been collected, but whatever was still in its
+// buffer is lost.
+final class LoxFile {
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private final String path;
+    private final FileChannel channel;
+    // For reading: the bytes read from the channel and not decoded yet, and the characters decoded and not returned
+    // yet. Both are kept ready to be read from.
+    private final ByteBuffer bytes;
+    private final CharBuffer chars;
+    private final CharsetDecoder decoder;
+    private boolean endOfFile = false;
+    // For writing.
+    private final Output out;
+    private boolean closed = false;
+
+    private LoxFile(String path, FileChannel channel, boolean writing) {
+        this.path = path;
+        this.channel = channel;
+        if (writing) {
+            bytes = null;
+            chars = null;
+            decoder = null;
+            out = new Output(channel, BUFFER_SIZE, false);
+        } else {
+            bytes = ByteBuffer.allocate(BUFFER_SIZE).flip();
+            chars = CharBuffer.allocate(BUFFER_SIZE).flip();
+            decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            out = null;
+        }
+
+        // The cleaning action mustn't refer to the file, or it would never be collected.
+        cleaner.register(this, () -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nobody is left to tell.
+            }
+        });
+    }
+
+    // Standard input, for reading like a file.
+    static LoxFile standardInput() {
+        return new LoxFile("standard input", new FileInputStream(FileDescriptor.in).getChannel(), false);
+    }
+
+    // A new empty directory for the files of a script, which is deleted with everything in it when the program exits,
+    // however the script ends.
+    static Object temporaryDirectory(Interpreter interpreter) {
+        Path directory;
+        try {
+            directory = Files.createTempDirectory("jlox-");
+        } catch (IOException | RuntimeException e) {
+            throw new NativeError("Can't create a temporary directory: " + e.getMessage());
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteAll(directory)));
+
+        var name = directory.toString();
+        interpreter.allocate(null, Budget.STRING_SIZE + Budget.CHAR_SIZE * name.length());
+        return name;
+    }
+
+    private static void deleteAll(Path directory) {
+        try (var paths = Files.walk(directory)) {
+            // Deepest first, so that every directory is empty by the time it is deleted.
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException | RuntimeException e) {
+            // Nobody is left to tell.
+        }
+    }
+
+    static Object open(Interpreter interpreter, Object path) {
+        return open(interpreter, path, false, StandardOpenOption.READ);
+    }
+
+    static Object create(Interpreter interpreter, Object path) {
+        return open(
+                interpreter,
+                path,
+                true,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    static Object append(Interpreter interpreter, Object path) {
+        return open(
+                interpreter,
+                path,
+                true,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    private static Object open(Interpreter interpreter, Object path, boolean writing, StandardOpenOption... options) {
+        var name = Rope.string(path);
+        if (name == null) {
+            throw new NativeError("File path must be a string.");
+        }
+
+        interpreter.allocate(null, Budget.FILE_SIZE);
+        try {
+            return new LoxFile(name, FileChannel.open(Path.of(name), options), writing);
+        } catch (IOException | RuntimeException e) {
+            throw new NativeError(String.format("Can't open %s: %s", name, e.getMessage()));
+        }
+    }
+
+    // The next line without its line terminator, or nil at the end of the file.
+    static Object readLine(Interpreter interpreter, Object file) {
+        return readLine(interpreter, file, null);
+    }
+
+    // Like readLine(), for a caller with a token to report the script running out of memory at. Then that is a
+    // RuntimeError, and a NativeError is always a failure to read.
+    static Object readLine(Interpreter interpreter, Object file, Token token) {
+        var self = reading(file);
+        synchronized (self) {
+            StringBuilder line = null;
+            while (self.fill()) {
+                var array = self.chars.array();
+                var start = self.chars.position();
+                var end = start;
+                while (end < self.chars.limit() && array[end] != '\n') {
+                    end++;
+                }
+
+                if (line == null) {
+                    line = new StringBuilder(end - start);
+                }
+                line.append(array, start, end - start);
+
+                if (end < self.chars.limit()) {
+                    self.chars.position(end + 1);
+                    break;
+                }
+                self.chars.position(end);
+            }
+
+            if (line == null) {
+                return null;
+            }
+
+            if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                line.setLength(line.length() - 1);
+            }
+            interpreter.allocate(token, Budget.STRING_SIZE + Budget.CHAR_SIZE * line.length());
+            return line.toString();
+        }
+    }
+
+    // The next count characters, or as many as are left, or nil at the end of the file.
+    static Object read(Interpreter interpreter, Object file, Object count) {
+        var self = reading(file);
+        if (!(count instanceof Double size) || size < 1 || size != Math.floor(size) || size > Integer.MAX_VALUE) {
+            throw new NativeError("Number of characters to read must be a positive whole number.");
+        }
+
+        synchronized (self) {
+            StringBuilder chunk = null;
+            while (self.fill() && (chunk == null || chunk.length() < size)) {
+                var length = (int)Math.min(self.chars.remaining(), size - (chunk == null ? 0 : chunk.length()));
+                if (chunk == null) {
+                    chunk = new StringBuilder(length);
+                }
+                chunk.append(self.chars.array(), self.chars.position(), length);
+                self.chars.position(self.chars.position() + length);
+            }
+
+            if (chunk == null) {
+                return null;
+            }
+
+            interpreter.allocate(null, Budget.STRING_SIZE + Budget.CHAR_SIZE * chunk.length());
+            return chunk.toString();
+        }
+    }
+
+    static Object write(Object file, Object value) {
+        writing(file).out.print(Interpreter.stringify(value));
+        return null;
+    }
+
+    static Object writeLine(Object file, Object value) {
+        writing(file).out.println(Interpreter.stringify(value));
+        return null;
+    }
+
+    // Writes out what is still buffered and closes the file. Closing a file again does nothing.
+    static Object close(Object file) {
+        var self = of(file);
+        synchronized (self) {
+            if (self.closed) {
+                return null;
+            }
+            self.closed = true;
+
+            if (self.out != null) {
+                self.out.flush();
+            }
+            try {
+                self.channel.close();
+            } catch (IOException e) {
+                throw new NativeError(String.format("Can't close %s: %s", self.path, e.getMessage()));
+            }
+            if (self.out != null && self.out.failure() != null) {
+                throw new NativeError(String.format("Can't write %s: %s", self.path, self.out.failure().getMessage()));
+            }
+        }
+
+        return null;
+    }
+
+    private static LoxFile of(Object file) {
+        if (!(file instanceof LoxFile result)) {
+            throw new NativeError("Expected a file.");
+        }
+
+        return result;
+    }
+
+    private static LoxFile reading(Object file) {
+        var self = of(file);
+        if (self.out != null) {
+            throw new NativeError("File is open for writing.");
+        }
+
+        return self;
+    }
+
+    private static LoxFile writing(Object file) {
+        var self = of(file);
+        if (self.out == null) {
+            throw new NativeError("File is open for reading.");
+        }
+
+        // Printing to an Output that failed goes on quietly, but a script writing a file wants to know right away.
+        if (self.out.failure() != null) {
+            throw new NativeError(String.format("Can't write %s: %s", self.path, self.out.failure().getMessage()));
+        }
+        synchronized (self) {
+            if (self.closed) {
+                throw new NativeError("File is closed.");
+            }
+        }
+
+        return self;
+    }
+
+    // Makes sure there are characters to read, decoding more if there aren't. Returns false at the end of the file.
+    private boolean fill() {
+        if (closed) {
+            throw new NativeError("File is closed.");
+        }
+
+        while (!chars.hasRemaining()) {
+            if (endOfFile && !bytes.hasRemaining()) {
+                return false;
+            }
+
+            if (!endOfFile) {
+                bytes.compact();
+                try {
+                    endOfFile = channel.read(bytes) < 0;
+                } catch (IOException e) {
+                    throw new NativeError(String.format("Can't read %s: %s", path, e.getMessage()));
+                } finally {
+                    bytes.flip();
+                }
+            }
+
+            chars.clear();
+            var result = decoder.decode(bytes, chars, endOfFile);
+            if (endOfFile && result.isUnderflow()) {
+                decoder.flush(chars);
+            }
+            chars.flip();
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<file %s>", path);
+    }
+}
@@ -0,0 +1,52 @@
+package me.elinge.lox;
+
+import java.util.Arrays;
+
+// An instance of a class. The values of its fields are kept in an array, in the slots its shape gives them, see Shape.
+// Instances are shared between tasks like any other value. Reading a field doesn't take a lock: the array only ever
+// grows, and a new field is put in it before the instance moves to the shape that has it, so the slots of a shape are
+// always in the array. Setting a field is done holding the lock of the instance, so that growing the array can't lose a
+// value set at the same time.
+final class LoxInstance {
+    private static final int MIN_CAPACITY = 4;
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    private volatile Shape shape;
+    private volatile Object[] fields = NO_FIELDS;
+
+    LoxInstance(LoxClass owner) {
+        this.shape = owner.shape;
+    }
+
+    Shape shape() {
+        return shape;
+    }
+
+    Object field(int slot) {
+        return fields[slot];
+    }
+
+    // Sets the field in slot, moving the instance to shape next if it doesn't have it yet. The caller holds the lock of
+    // the instance and found slot and next for the shape it has.
+    void set(Interpreter interpreter, Token token, int slot, Shape next, Object value) {
+        var fields = this.fields;
+        if (slot >= fields.length) {
+            var grown = Math.max(MIN_CAPACITY, 2 * fields.length);
+            interpreter.allocate(token, Budget.FIELD_SIZE * grown);
+            fields = Arrays.copyOf(fields, grown);
+            fields[slot] = value;
+            this.fields = fields;
+        } else {
+            fields[slot] = value;
+        }
+
+        if (next != shape) {
+            shape = next;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return shape.owner.name + " instance";
+    }
+}
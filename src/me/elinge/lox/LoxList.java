@@ -0,0 +1,257 @@
+package me.elinge.lox;
+
+import java.util.Arrays;
+
+// A growable list of values, made with the native list() and used through natives of its own. As long as every
+// element is a number they are kept unboxed in a double[], which the bulk natives fill, sort and sum go through in
+// plain loops. The first element that isn't a number moves them all into an Object[], and they only move back when a
+// list that holds nothing but numbers again is sorted. Lists are shared between tasks like any other value, so every
+// operation holds the lock of the list.
+final class LoxList {
+    private static final int MIN_CAPACITY = 8;
+    private static final double[] NO_NUMBERS = new double[0];
+
+    // One of the two, the other is null.
+    private double[] numbers = NO_NUMBERS;
+    private Object[] values = null;
+    private int size = 0;
+
+    static LoxList create(Interpreter interpreter) {
+        interpreter.allocate(null, Budget.LIST_SIZE);
+        return new LoxList();
+    }
+
+    static Object length(Object list) {
+        var self = of(list, "Expected a list or a map.");
+        synchronized (self) {
+            return (double)self.size;
+        }
+    }
+
+    static Object get(Object list, Object index) {
+        var self = of(list, "Expected a list or a map.");
+        synchronized (self) {
+            var i = self.index(index);
+            return self.numbers != null ? (Object)self.numbers[i] : self.values[i];
+        }
+    }
+
+    static Object set(Object list, Object index, Object value) {
+        var self = of(list, "Expected a list or a map.");
+        synchronized (self) {
+            var i = self.index(index);
+            if (self.numbers != null && !(value instanceof Double)) {
+                self.box();
+            }
+
+            if (self.numbers != null) {
+                self.numbers[i] = (Double)value;
+            } else {
+                self.values[i] = value;
+            }
+        }
+
+        return value;
+    }
+
+    static Object push(Interpreter interpreter, Object list, Object value) {
+        var self = of(list);
+        synchronized (self) {
+            if (self.numbers != null && !(value instanceof Double)) {
+                self.box();
+            }
+
+            self.reserve(interpreter, self.size + 1);
+            if (self.numbers != null) {
+                self.numbers[self.size++] = (Double)value;
+            } else {
+                self.values[self.size++] = value;
+            }
+        }
+
+        return null;
+    }
+
+    static Object pop(Object list) {
+        var self = of(list);
+        synchronized (self) {
+            if (self.size == 0) {
+                throw new NativeError("Can't pop from an empty list.");
+            }
+
+            self.size--;
+            if (self.numbers != null) {
+                return self.numbers[self.size];
+            }
+
+            var value = self.values[self.size];
+            self.values[self.size] = null;
+            return value;
+        }
+    }
+
+    // Sets every element to value.
+    static Object fill(Object list, Object value) {
+        var self = of(list);
+        synchronized (self) {
+            if (self.numbers != null && !(value instanceof Double)) {
+                self.box();
+            }
+
+            if (self.numbers != null) {
+                Arrays.fill(self.numbers, 0, self.size, (Double)value);
+            } else {
+                Arrays.fill(self.values, 0, self.size, value);
+            }
+        }
+
+        return null;
+    }
+
+    // Sorts a list of numbers or a list of strings in ascending order, in place.
+    static Object sort(Object list) {
+        var self = of(list);
+        synchronized (self) {
+            if (self.numbers != null || self.unbox()) {
+                Arrays.sort(self.numbers, 0, self.size);
+                return null;
+            }
+
+            var strings = new String[self.size];
+            for (int i = 0; i < self.size; i++) {
+                strings[i] = Rope.string(self.values[i]);
+                if (strings[i] == null) {
+                    throw new NativeError("Can only sort a list of numbers or a list of strings.");
+                }
+            }
+
+            Arrays.sort(strings, Rope::compare);
+            System.arraycopy(strings, 0, self.values, 0, self.size);
+        }
+
+        return null;
+    }
+
+    static Object sum(Object list) {
+        var self = of(list);
+        synchronized (self) {
+            var sum = 0.0;
+            if (self.numbers != null) {
+                for (int i = 0; i < self.size; i++) {
+                    sum += self.numbers[i];
+                }
+                return sum;
+            }
+
+            for (int i = 0; i < self.size; i++) {
+                if (!(self.values[i] instanceof Double number)) {
+                    throw new NativeError("Can only sum a list of numbers.");
+                }
+                sum += number;
+            }
+            return sum;
+        }
+    }
+
+    // A copy of the elements, for saving the list in a snapshot.
+    synchronized Object[] elements() {
+        if (numbers == null) {
+            return Arrays.copyOf(values, size);
+        }
+
+        var elements = new Object[size];
+        for (int i = 0; i < size; i++) {
+            elements[i] = numbers[i];
+        }
+        return elements;
+    }
+
+    private static LoxList of(Object list) {
+        return of(list, "Expected a list.");
+    }
+
+    private static LoxList of(Object list, String message) {
+        if (!(list instanceof LoxList result)) {
+            throw new NativeError(message);
+        }
+
+        return result;
+    }
+
+    private int index(Object index) {
+        if (!(index instanceof Double i) || i != Math.floor(i)) {
+            throw new NativeError("List index must be a whole number.");
+        }
+
+        if (i < 0 || i >= size) {
+            throw new NativeError("List index out of range.");
+        }
+
+        return i.intValue();
+    }
+
+    // Makes room for at least capacity elements, doubling the storage when it grows.
+    private void reserve(Interpreter interpreter, int capacity) {
+        var current = numbers != null ? numbers.length : values.length;
+        if (capacity <= current) {
+            return;
+        }
+
+        if (capacity < 0 || capacity > Integer.MAX_VALUE - 8) {
+            throw new NativeError("List is too long.");
+        }
+
+        var grown = (int)Math.min(Integer.MAX_VALUE - 8, Math.max(MIN_CAPACITY, Math.max(2L * current, capacity)));
+        interpreter.allocate(null, Budget.ELEMENT_SIZE * grown);
+        if (numbers != null) {
+            numbers = Arrays.copyOf(numbers, grown);
+        } else {
+            values = Arrays.copyOf(values, grown);
+        }
+    }
+
+    // Moves the numbers into an Object[] so that the list can hold other values too.
+    private void box() {
+        values = new Object[Math.max(numbers.length, MIN_CAPACITY)];
+        for (int i = 0; i < size; i++) {
+            values[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    // Moves the elements back into a double[] if they are all numbers, and returns whether it did.
+    private boolean unbox() {
+        for (int i = 0; i < size; i++) {
+            if (!(values[i] instanceof Double)) {
+                return false;
+            }
+        }
+
+        numbers = new double[values.length];
+        for (int i = 0; i < size; i++) {
+            numbers[i] = (Double)values[i];
+        }
+        values = null;
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        var builder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+
+            if (numbers != null) {
+                builder.append(Interpreter.stringify(numbers[i]));
+            } else if (values[i] == this) {
+                builder.append("<this list>");
+            } else {
+                builder.append(Interpreter.stringify(values[i]));
+            }
+        }
+
+        return builder.append("]").toString();
+    }
+}
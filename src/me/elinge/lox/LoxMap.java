@@ -0,0 +1,211 @@
+package me.elinge.lox;
+
+// A hash map from strings, numbers and booleans to any values, made with the native map(). Keys are equal when == says
+// they are. The entries are kept in one flat array, each key followed by its value, and found by linear probing from
+// where the hash of the key points, so an entry takes two array slots and a hash instead of the node of a
+// java.util.HashMap. It is never more than three quarters full. Removing an entry moves later ones of the same probe
+// run back into its place, so there are no tombstones. Maps are shared between tasks like any other value, so every
+// operation holds the lock of the map.
+final class LoxMap {
+    private static final int MIN_CAPACITY = 8;
+
+    // Keys at even indexes and values after them, null where there is no entry. Strings are kept as Strings, never as
+    // Ropes. The number of entries there is room for is always a power of two.
+    private Object[] table = new Object[2 * MIN_CAPACITY];
+    // The hash of each entry, so that probing only looks at keys that are likely to be the one it's after.
+    private int[] hashes = new int[MIN_CAPACITY];
+    private int size = 0;
+
+    static LoxMap create(Interpreter interpreter) {
+        interpreter.allocate(null, Budget.MAP_SIZE + Budget.MAP_ENTRY_SIZE * MIN_CAPACITY);
+        return new LoxMap();
+    }
+
+    // The value of key, or nil if the map doesn't have it.
+    static Object get(Object map, Object key) {
+        var self = of(map);
+        key = key(key);
+        synchronized (self) {
+            var slot = self.find(key);
+            return self.table[slot] == null ? null : self.table[slot + 1];
+        }
+    }
+
+    static Object put(Interpreter interpreter, Object map, Object key, Object value) {
+        var self = of(map);
+        key = key(key);
+        synchronized (self) {
+            var slot = self.find(key);
+            if (self.table[slot] == null) {
+                if (4 * (self.size + 1) > 3 * self.hashes.length) {
+                    self.grow(interpreter);
+                    slot = self.find(key);
+                }
+                self.table[slot] = key;
+                self.hashes[slot / 2] = hash(key);
+                self.size++;
+            }
+            self.table[slot + 1] = value;
+        }
+
+        return value;
+    }
+
+    // Removes key if the map has it, returning its value.
+    static Object remove(Object map, Object key) {
+        var self = of(map);
+        key = key(key);
+        synchronized (self) {
+            var slot = self.find(key);
+            if (self.table[slot] == null) {
+                return null;
+            }
+
+            var value = self.table[slot + 1];
+            self.delete(slot);
+            return value;
+        }
+    }
+
+    static Object size(Object map) {
+        var self = of(map);
+        synchronized (self) {
+            return (double)self.size;
+        }
+    }
+
+    // A new list of the keys, for going through the map. Its order has nothing to do with when they were put.
+    static Object keys(Interpreter interpreter, Object map) {
+        var self = of(map);
+        var keys = LoxList.create(interpreter);
+        synchronized (self) {
+            for (int i = 0; i < self.table.length; i += 2) {
+                if (self.table[i] != null) {
+                    LoxList.push(interpreter, keys, self.table[i]);
+                }
+            }
+        }
+
+        return keys;
+    }
+
+    // Every key followed by its value, for saving the map in a snapshot.
+    synchronized Object[] entries() {
+        var entries = new Object[2 * size];
+        var next = 0;
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] != null) {
+                entries[next++] = table[i];
+                entries[next++] = table[i + 1];
+            }
+        }
+        return entries;
+    }
+
+    private static LoxMap of(Object map) {
+        if (!(map instanceof LoxMap result)) {
+            throw new NativeError("Expected a map.");
+        }
+
+        return result;
+    }
+
+    private static Object key(Object key) {
+        if (key instanceof Rope rope) {
+            return rope.toString();
+        }
+
+        if (!(key instanceof String || key instanceof Double || key instanceof Boolean)) {
+            throw new NativeError("Map keys must be strings, numbers or booleans.");
+        }
+
+        return key;
+    }
+
+    // The hash code of key, spread over all the bits: mixing the high half into the low one helps the hashes of
+    // numbers, and multiplying by 2^32 divided by the golden ratio makes the top bits depend on all the others.
+    private static int hash(Object key) {
+        var hash = key.hashCode();
+        return (hash ^ hash >>> 16) * 0x9e3779b9;
+    }
+
+    // The entry where the probe run for a hash starts, from its top bits.
+    private int home(int hash) {
+        return hash >>> Integer.numberOfLeadingZeros(hashes.length - 1);
+    }
+
+    // The slot of key, or of the empty one where it would go.
+    private int find(Object key) {
+        var hash = hash(key);
+        var mask = table.length - 1;
+        for (var slot = 2 * home(hash); ; slot = (slot + 2) & mask) {
+            var existing = table[slot];
+            if (existing == null || existing == key || hashes[slot / 2] == hash && existing.equals(key)) {
+                return slot;
+            }
+        }
+    }
+
+    private void delete(int slot) {
+        var mask = table.length - 1;
+        var hole = slot;
+        for (var next = (slot + 2) & mask; table[next] != null; next = (next + 2) & mask) {
+            // The entry at next can move into the hole unless its probe run starts after the hole, going around the
+            // end of the table.
+            var home = 2 * home(hashes[next / 2]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                table[hole + 1] = table[next + 1];
+                hashes[hole / 2] = hashes[next / 2];
+                hole = next;
+            }
+        }
+
+        table[hole] = null;
+        table[hole + 1] = null;
+        size--;
+    }
+
+    private void grow(Interpreter interpreter) {
+        if (table.length > (1 << 29)) {
+            throw new NativeError("Map is too big.");
+        }
+
+        var oldTable = table;
+        var oldHashes = hashes;
+        interpreter.allocate(null, Budget.MAP_ENTRY_SIZE * 2 * hashes.length);
+        table = new Object[2 * oldTable.length];
+        hashes = new int[2 * oldHashes.length];
+        var mask = table.length - 1;
+        for (int i = 0; i < oldTable.length; i += 2) {
+            if (oldTable[i] != null) {
+                var hash = oldHashes[i / 2];
+                var slot = 2 * home(hash);
+                while (table[slot] != null) {
+                    slot = (slot + 2) & mask;
+                }
+                table[slot] = oldTable[i];
+                table[slot + 1] = oldTable[i + 1];
+                hashes[slot / 2] = hash;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        var builder = new StringBuilder("{");
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] == null) {
+                continue;
+            }
+
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            builder.append(Interpreter.stringify(table[i])).append(": ");
+            builder.append(table[i + 1] == this ? "<this map>" : Interpreter.stringify(table[i + 1]));
+        }
+
+        return builder.append("}").toString();
+    }
+}
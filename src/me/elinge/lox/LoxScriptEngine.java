@@ -0,0 +1,158 @@
+package me.elinge.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+// jlox as a javax.script engine. The engine scope bindings are the globals of the script, and are updated with the ones
+// it leaves behind. Scripts don't produce a value, so eval() always returns null. Compiled scripts can be evaluated on
+// many threads at once. A Budget in the context attribute BUDGET limits how long the script may run.
+public class LoxScriptEngine extends AbstractScriptEngine implements Compilable {
+    public static final String BUDGET = "jlox.budget";
+
+    private final ScriptEngineFactory factory;
+
+    public LoxScriptEngine() {
+        this(new LoxScriptEngineFactory());
+    }
+
+    LoxScriptEngine(ScriptEngineFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return compile(script).eval(context);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return compile(reader).eval(context);
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        try {
+            return new LoxCompiledScript(Program.compile(script));
+        } catch (LoxException e) {
+            throw scriptException(e);
+        }
+    }
+
+    @Override
+    public CompiledScript compile(Reader script) throws ScriptException {
+        var source = new StringBuilder();
+        var buffer = new char[8192];
+        try {
+            for (int count; (count = script.read(buffer)) >= 0; ) {
+                source.append(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+
+        return compile(source.toString());
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    private ScriptException scriptException(LoxException e) {
+        var fileName = (String)get(ScriptEngine.FILENAME);
+        return new ScriptException(e.getMessage(), fileName, e.getLine());
+    }
+
+    private class LoxCompiledScript extends CompiledScript {
+        private final Program program;
+
+        LoxCompiledScript(Program program) {
+            this.program = program;
+        }
+
+        @Override
+        public Object eval(ScriptContext context) throws ScriptException {
+            var out = new PrintStream(new WriterOutputStream(context.getWriter()), true, StandardCharsets.UTF_8);
+            try {
+                var budget = (Budget)context.getAttribute(BUDGET);
+                program.run(out, context.getBindings(ScriptContext.ENGINE_SCOPE), budget);
+            } catch (LoxException e) {
+                throw scriptException(e);
+            } finally {
+                out.flush();
+            }
+
+            return null;
+        }
+
+        @Override
+        public ScriptEngine getEngine() {
+            return LoxScriptEngine.this;
+        }
+    }
+
+    // Passes what the interpreter prints on to the writer of the script context. The interpreter writes whole lines
+    // unless one is longer than its buffer, so the bytes of a character that is split between two writes are held back
+    // until the rest of it comes.
+    private static class WriterOutputStream extends OutputStream {
+        private final Writer writer;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        WriterOutputStream(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            buffer.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            var bytes = ByteBuffer.wrap(buffer.toByteArray());
+            var chars = CharBuffer.allocate(bytes.remaining());
+            decoder.decode(bytes, chars, false);
+            buffer.reset();
+            buffer.write(bytes.array(), bytes.position(), bytes.remaining());
+
+            try {
+                writer.write(chars.array(), 0, chars.position());
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
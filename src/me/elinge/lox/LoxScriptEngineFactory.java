@@ -0,0 +1,82 @@
+package me.elinge.lox;
+
+import java.util.List;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+// Makes the script engine available through javax.script.ScriptEngineManager, as "lox" or "jlox".
+public class LoxScriptEngineFactory implements ScriptEngineFactory {
+    @Override
+    public String getEngineName() {
+        return "jlox";
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return String.valueOf(ProgramCache.VERSION);
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return List.of("lox");
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return List.of();
+    }
+
+    @Override
+    public List<String> getNames() {
+        return List.of("lox", "jlox");
+    }
+
+    @Override
+    public String getLanguageName() {
+        return "Lox";
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return "1.0";
+    }
+
+    @Override
+    public Object getParameter(String key) {
+        return switch (key) {
+            case ScriptEngine.ENGINE -> getEngineName();
+            case ScriptEngine.ENGINE_VERSION -> getEngineVersion();
+            case ScriptEngine.LANGUAGE -> getLanguageName();
+            case ScriptEngine.LANGUAGE_VERSION -> getLanguageVersion();
+            case ScriptEngine.NAME -> getNames().get(0);
+            // Every run has an interpreter of its own, and compiled scripts don't change.
+            case "THREADING" -> "MULTITHREADED";
+            default -> null;
+        };
+    }
+
+    @Override
+    public String getMethodCallSyntax(String object, String method, String... arguments) {
+        return String.format("%s.%s(%s)", object, method, String.join(", ", arguments));
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return "print \"" + toDisplay.replace("\"", "") + "\";";
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        var program = new StringBuilder();
+        for (var statement : statements) {
+            program.append(statement).append(";\n");
+        }
+
+        return program.toString();
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new LoxScriptEngine(this);
+    }
+}
@@ -0,0 +1,21 @@
+package me.elinge.lox;
+
+import java.util.List;
+
+// A function implemented in Java. Natives don't hold any state of their own, so the same ones are shared by every
+// interpreter.
+record Native(String name, int arity, Body body) implements Callable {
+    interface Body {
+        Object call(Interpreter interpreter, List<Object> arguments);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return body.call(interpreter, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
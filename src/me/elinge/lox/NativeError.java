@@ -0,0 +1,9 @@
+package me.elinge.lox;
+
+// Thrown by a native function that can't do what it was asked to. Natives don't know where they were called from, so
+// the interpreter turns it into a RuntimeError at the call.
+class NativeError extends RuntimeException {
+    NativeError(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,213 @@
+package me.elinge.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Where print statements go. What is printed is encoded as UTF-8 into a large buffer, which is only written to the
+// channel when it is full or flushed, so printing a line is a copy into memory instead of a write on every line the way
+// System.out does it. Whoever prints is responsible for flushing at the points where the output has to be out: when
+// the script ends, before reporting an error so it comes after what was printed before it, and before waiting for
+// input.
+//
+// With a writer thread, full buffers are handed over to it and printing goes on into another one while it writes.
+//
+// Text is never split between two writes unless it doesn't fit in the buffer on its own, so a reader that decodes
+// every write by itself only sees broken characters in lines longer than the buffer. Errors writing to the channel
+// don't stop the printing, like with PrintStream, but once one happened nothing more is written and failure() has it.
+class Output {
+    static final int DEFAULT_SIZE = 64 * 1024;
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    // The one being filled and the one being written.
+    private static final int BUFFERS = 2;
+
+    private final WritableByteChannel channel;
+    private final ExecutorService writer;
+    private final BlockingQueue<ByteBuffer> spare;
+    private ByteBuffer buffer;
+    // The first error writing to the channel.
+    private volatile IOException failure = null;
+
+    Output(WritableByteChannel channel) {
+        this(channel, DEFAULT_SIZE, false);
+    }
+
+    Output(WritableByteChannel channel, int size, boolean async) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(Math.max(size, NEWLINE.length));
+        if (async) {
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                var thread = new Thread(runnable, "lox-output");
+                thread.setDaemon(true);
+                return thread;
+            });
+            spare = new ArrayBlockingQueue<>(BUFFERS);
+            for (int i = 1; i < BUFFERS; i++) {
+                spare.add(ByteBuffer.allocate(buffer.capacity()));
+            }
+        } else {
+            writer = null;
+            spare = null;
+        }
+    }
+
+    synchronized void print(String text) {
+        var length = text.length();
+        if (length > buffer.remaining()) {
+            drain();
+        }
+
+        // Most of what scripts print is ASCII, which is copied a char to a byte without looking at a charset. Whatever
+        // follows the first other character is encoded the usual way.
+        if (length <= buffer.remaining()) {
+            for (int i = 0; i < length; i++) {
+                var c = text.charAt(i);
+                if (c >= 0x80) {
+                    put(text.substring(i).getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                buffer.put((byte)c);
+            }
+        } else {
+            put(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    synchronized void println(String text) {
+        print(text);
+        put(NEWLINE);
+    }
+
+    // Prints a number the way Interpreter.stringify() does. Whole numbers are written into the buffer a digit at a time
+    // without making a String first.
+    synchronized void println(double number) {
+        if (!Interpreter.isPrintedWhole(number)) {
+            println(Interpreter.stringify(number));
+            return;
+        }
+
+        // At most seven digits and a sign.
+        if (buffer.remaining() < 8 + NEWLINE.length) {
+            drain();
+        }
+
+        var whole = (long)number;
+        var digits = whole < 0 ? -whole : whole;
+        var length = whole < 0 ? 2 : 1;
+        for (var rest = digits / 10; rest > 0; rest /= 10) {
+            length++;
+        }
+
+        var start = buffer.position();
+        var end = start + length;
+        if (whole < 0) {
+            buffer.put(start, (byte)'-');
+        }
+        do {
+            buffer.put(--end, (byte)('0' + digits % 10));
+            digits /= 10;
+        } while (digits > 0);
+        buffer.position(start + length);
+        buffer.put(NEWLINE);
+    }
+
+    // Writes out everything printed so far and waits until it has been.
+    synchronized void flush() {
+        drain();
+        if (writer != null) {
+            await(writer.submit(() -> {}));
+        }
+    }
+
+    // What writing failed with, or null if it hasn't.
+    IOException failure() {
+        return failure;
+    }
+
+    private void put(byte[] bytes) {
+        if (bytes.length > buffer.remaining()) {
+            drain();
+        }
+
+        if (bytes.length <= buffer.remaining()) {
+            buffer.put(bytes);
+        } else if (writer == null) {
+            write(ByteBuffer.wrap(bytes));
+        } else {
+            writer.execute(() -> write(ByteBuffer.wrap(bytes)));
+        }
+    }
+
+    // Writes the buffer, or hands it over to the writer thread and takes the one it is done with.
+    private void drain() {
+        if (buffer.position() == 0) {
+            return;
+        }
+
+        buffer.flip();
+        if (writer == null) {
+            write(buffer);
+            buffer.clear();
+            return;
+        }
+
+        var full = buffer;
+        writer.execute(() -> {
+            write(full);
+            full.clear();
+            spare.add(full);
+        });
+
+        var interrupted = false;
+        while (true) {
+            try {
+                buffer = spare.take();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(ByteBuffer bytes) {
+        if (failure != null) {
+            return;
+        }
+
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    // Output has to be out before whatever comes after it, so this doesn't give up when interrupted.
+    private static void await(Future<?> future) {
+        var interrupted = false;
+        while (true) {
+            try {
+                future.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
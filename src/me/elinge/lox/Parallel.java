@@ -0,0 +1,185 @@
+package me.elinge.lox;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Runs the iterations of a parallel for, and parallelReduce(), on a pool of workers. Ranges of iterations are split in
+// halves until they are small enough, and every thread working on them gets an interpreter of its own, which gives back
+// its unburnt fuel when the thread is done. If iterations fail, the error of the one with the lowest index is reported,
+// however the work ended up being spread over the workers.
+class Parallel {
+    // The ranges parallelReduce() combines don't depend on the number of workers, so it gives the same result
+    // everywhere, even when combining isn't associative, like adding up numbers that need rounding.
+    private static final long REDUCE_GRAIN = 16;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final AtomicLong workerCount = new AtomicLong();
+    // The workers run scripts, so they get the same big stack as the main thread, which the threads of a fork-join
+    // pool can't be given. They are daemon threads, so they don't keep the program from exiting.
+    private static final ExecutorService workers = Executors.newFixedThreadPool(PARALLELISM, runnable -> {
+        var thread = Lox.newThread(runnable, "lox-parallel-" + workerCount.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    interface Body {
+        void run(Interpreter worker, long index);
+    }
+
+    static void forRange(Interpreter parent, long count, Body body) {
+        if (count <= 0) {
+            return;
+        }
+
+        // A few ranges per worker, so that ones that finish early can take over some work from the others.
+        var grain = Math.max(1, count / (4L * PARALLELISM));
+        var worker = new Interpreter(parent);
+        try {
+            forRange(parent, worker, body, 0, count, grain);
+        } finally {
+            worker.finish();
+        }
+    }
+
+    private static void forRange(Interpreter parent, Interpreter worker, Body body, long from, long to, long grain) {
+        if (to - from <= grain) {
+            for (var index = from; index < to; index++) {
+                body.run(worker, index);
+            }
+            return;
+        }
+
+        // The first half is the one whose error gets thrown if both fail.
+        var middle = from + (to - from) / 2;
+        var second = new Fork<>(parent, forked -> {
+            forRange(parent, forked, body, middle, to, grain);
+            return null;
+        });
+        try {
+            forRange(parent, worker, body, from, middle, grain);
+        } catch (RuntimeException | Error error) {
+            second.abandon();
+            throw error;
+        }
+        second.join(worker);
+    }
+
+    // Combines map(0), map(1), ..., map(count - 1) with combine(), in order but grouped in a fixed way, and returns nil
+    // if count is 0.
+    static Object reduce(Interpreter parent, Object count, Object map, Object combine) {
+        if (!(count instanceof Double size) || size < 0 || size != Math.floor(size)) {
+            throw new NativeError("The count of parallelReduce() must be a whole number that isn't negative.");
+        }
+        if (!(map instanceof Callable mapper) || mapper.arity() != 1) {
+            throw new NativeError("The map function of parallelReduce() must take one argument.");
+        }
+        if (!(combine instanceof Callable combiner) || combiner.arity() != 2) {
+            throw new NativeError("The combine function of parallelReduce() must take two arguments.");
+        }
+
+        if (size == 0) {
+            return null;
+        }
+
+        var worker = new Interpreter(parent);
+        try {
+            return reduce(parent, worker, mapper, combiner, 0, size.longValue());
+        } finally {
+            worker.finish();
+        }
+    }
+
+    private static Object reduce(
+            Interpreter parent, Interpreter worker, Callable map, Callable combine, long from, long to) {
+        if (to - from <= REDUCE_GRAIN) {
+            var result = map.call(worker, List.of((double)from));
+            for (var index = from + 1; index < to; index++) {
+                result = combine.call(worker, Arrays.asList(result, map.call(worker, List.of((double)index))));
+            }
+            return result;
+        }
+
+        var middle = from + (to - from) / 2;
+        var right = new Fork<>(parent, forked -> reduce(parent, forked, map, combine, middle, to));
+        Object left;
+        try {
+            left = reduce(parent, worker, map, combine, from, middle);
+        } catch (RuntimeException | Error error) {
+            right.abandon();
+            throw error;
+        }
+        // Arrays.asList() because the results can be nil.
+        return combine.call(worker, Arrays.asList(left, right.join(worker)));
+    }
+
+    // Work that a worker does if one is free before the thread that forked it gets around to it, and the forking
+    // thread does itself otherwise. So work that forks more work only ever waits on work that is running, never on
+    // work that is still queued behind it. The work is given the interpreter of whichever thread does it.
+    private static class Fork<T> implements Runnable {
+        private final Interpreter parent;
+        private final Function<Interpreter, T> work;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Fork(Interpreter parent, Function<Interpreter, T> work) {
+            this.parent = parent;
+            this.work = work;
+            workers.execute(this);
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+
+            var worker = new Interpreter(parent);
+            try {
+                result.complete(work.apply(worker));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                worker.finish();
+            }
+        }
+
+        T join(Interpreter worker) {
+            if (claimed.compareAndSet(false, true)) {
+                return work.apply(worker);
+            }
+
+            try {
+                return result.join();
+            } catch (CompletionException e) {
+                // The error is reported where it happened in the work.
+                if (e.getCause() instanceof RuntimeException error) {
+                    throw error;
+                }
+                if (e.getCause() instanceof Error error) {
+                    throw error;
+                }
+                throw e;
+            }
+        }
+
+        // Called when the work forked alongside this one failed, and this one's error couldn't be the one reported.
+        // It's not started if nobody has yet, and otherwise waited for, so no script code is left running after the
+        // parallel for or parallelReduce() ends.
+        void abandon() {
+            if (claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                result.join();
+            } catch (CompletionException e) {
+                // Its error is dropped in favor of the one being thrown.
+            }
+        }
+    }
+}
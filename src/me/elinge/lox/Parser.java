@@ -2,6 +2,7 @@ package me.elinge.lox;
 
 import java.io.Serial;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 class Parser {
@@ -10,11 +11,90 @@ class Parser {
         private static final long serialVersionUID = -7164347622529507778L;
     }
 
+    // Nesting too deep to go on from, so it ends the parse instead of being caught by the declaration it is in.
+    private static class NestingError extends ParseError {
+        @Serial
+        private static final long serialVersionUID = 2749140817461722713L;
+    }
+
+    // Every pass after the parser walks the tree recursively, none of them with more than half a kilobyte of stack
+    // per level. Nesting is limited to what fits in the stack of the threads that run scripts, which tasks, generators
+    // and parallel workers all get too, so a tree that gets past the parser doesn't overflow the stack of a later pass.
+    private static final long STACK_PER_LEVEL = 1024;
+
+    // How tightly each kind of expression binds, from loosest to tightest.
+    private enum Precedence {
+        NONE,
+        // TODO: Comma expressions would go here, but they conflict with the commas between the arguments of a call.
+        ASSIGNMENT,
+        OR,
+        AND,
+        // Not an operator: the operands of 'and' and 'or', where a binary operator is reported as missing its left-hand
+        // operand instead of being taken as unary.
+        OPERAND,
+        TERNARY,
+        EQUALITY,
+        COMPARISON,
+        TERM,
+        FACTOR,
+        UNARY,
+        CALL,
+    }
+
+    // Precedence of each token type when it follows an operand, indexed by ordinal. NONE ends the expression.
+    private static final Precedence[] precedences = new Precedence[TokenType.values().length];
+    private static final Precedence[] levels = Precedence.values();
+
+    static {
+        Arrays.fill(precedences, Precedence.NONE);
+        precedences[TokenType.EQUAL.ordinal()] = Precedence.ASSIGNMENT;
+        precedences[TokenType.OR.ordinal()] = Precedence.OR;
+        precedences[TokenType.AND.ordinal()] = Precedence.AND;
+        precedences[TokenType.QUESTION.ordinal()] = Precedence.TERNARY;
+        precedences[TokenType.BANG_EQUAL.ordinal()] = Precedence.EQUALITY;
+        precedences[TokenType.EQUAL_EQUAL.ordinal()] = Precedence.EQUALITY;
+        precedences[TokenType.GREATER.ordinal()] = Precedence.COMPARISON;
+        precedences[TokenType.GREATER_EQUAL.ordinal()] = Precedence.COMPARISON;
+        precedences[TokenType.LESS.ordinal()] = Precedence.COMPARISON;
+        precedences[TokenType.LESS_EQUAL.ordinal()] = Precedence.COMPARISON;
+        precedences[TokenType.MINUS.ordinal()] = Precedence.TERM;
+        precedences[TokenType.PLUS.ordinal()] = Precedence.TERM;
+        precedences[TokenType.SLASH.ordinal()] = Precedence.FACTOR;
+        precedences[TokenType.STAR.ordinal()] = Precedence.FACTOR;
+        precedences[TokenType.LEFT_PAREN.ordinal()] = Precedence.CALL;
+        precedences[TokenType.DOT.ordinal()] = Precedence.CALL;
+    }
+
     private final List<Token> tokens;
+    // When set, tokens are pulled from the scanner as the parser needs them instead of being scanned up front.
+    private final Scanner scanner;
+    // When set, the bodies of top-level functions are only brace-matched, see LazyBody.
+    private final boolean lazy;
+    private final ErrorReporter reporter;
     private int current = 0;
+    private int blockDepth = 0;
+    // The statements and expressions being parsed around the current token, and the height of the tallest expression
+    // finished since it was last reset, see parsePrecedence().
+    private int nesting = 0;
+    private int tallest = 0;
+    private final long maxNesting = Lox.stackSize / STACK_PER_LEVEL;
 
-    Parser(List<Token> tokens) {
+    Parser(List<Token> tokens, ErrorReporter reporter) {
+        this(tokens, false, reporter);
+    }
+
+    Parser(List<Token> tokens, boolean lazy, ErrorReporter reporter) {
         this.tokens = tokens;
+        this.scanner = null;
+        this.lazy = lazy;
+        this.reporter = reporter;
+    }
+
+    Parser(Scanner scanner, boolean lazy, ErrorReporter reporter) {
+        this.tokens = new ArrayList<>();
+        this.scanner = scanner;
+        this.lazy = lazy;
+        this.reporter = reporter;
     }
 
     List<Stmt> parse() {
@@ -27,15 +107,62 @@ class Parser {
             return statements;
         } catch (ParseError error) {
             return null;
+        } catch (StackOverflowError error) {
+            tooDeep();
+            return null;
+        }
+    }
+
+    // Parses the tokens set aside by a lazy parse of a function body, see LazyBody.
+    List<Stmt> parseBody() {
+        try {
+            return block();
+        } catch (ParseError error) {
+            return null;
+        } catch (StackOverflowError error) {
+            tooDeep();
+            return null;
+        }
+    }
+
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    // Parses a single top-level declaration, for callers that execute the program as it is being parsed. Returns null
+    // if the declaration had a syntax error. Nesting too deep to go on from skips the rest of the tokens.
+    Stmt next() {
+        Stmt statement;
+        try {
+            statement = declaration();
+        } catch (NestingError error) {
+            skipToEnd();
+            statement = null;
+        } catch (StackOverflowError error) {
+            tooDeep();
+            skipToEnd();
+            statement = null;
         }
+
+        // Release the tokens of this declaration, only previous() may still look at them.
+        if (current > 1) {
+            tokens.subList(0, current - 1).clear();
+            current = 1;
+        }
+
+        return statement;
     }
 
     private Expr expression() {
-        return assignment();
+        return parsePrecedence(Precedence.ASSIGNMENT);
     }
 
     private Stmt declaration() {
         try {
+            if (match(TokenType.CLASS)) {
+                return classDeclaration();
+            }
+
             if (match(TokenType.FUN)) {
                 return function("function");
             }
@@ -45,41 +172,85 @@ class Parser {
             }
 
             return statement();
+        } catch (NestingError error) {
+            throw error;
         } catch (ParseError error) {
             synchronize();
             return null;
         }
     }
 
-    private Stmt statement() {
-        if (match(TokenType.FOR)) {
-            return forStatement();
-        }
+    private Stmt classDeclaration() {
+        var name = consume(TokenType.IDENTIFIER, "Expected class name.");
 
-        if (match(TokenType.IF)) {
-            return ifStatement();
+        Expr.Variable superclass = null;
+        if (match(TokenType.LESS)) {
+            superclass = new Expr.Variable(consume(TokenType.IDENTIFIER, "Expected superclass name."));
         }
 
-        if (match(TokenType.PRINT)) {
-            return printStatement();
-        }
+        consume(TokenType.LEFT_BRACE, "Expected '{' before class body.");
 
-        if (match(TokenType.RETURN)) {
-            return returnStatement();
+        // Methods are resolved with the class around them, so their bodies can't be parsed lazily like those of
+        // top-level functions.
+        var methods = new ArrayList<Stmt.Function>();
+        blockDepth++;
+        try {
+            while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+                methods.add((Stmt.Function)function("method"));
+            }
+        } finally {
+            blockDepth--;
         }
 
-        if (match(TokenType.WHILE)) {
-            return whileStatement();
-        }
+        consume(TokenType.RIGHT_BRACE, "Expected '}' after class body.");
+        return new Stmt.Class(name, superclass, methods);
+    }
 
-        if (match(TokenType.LEFT_BRACE)) {
-            return new Stmt.Block(block());
-        }
+    private Stmt statement() {
+        nesting++;
+        try {
+            checkNesting(nesting, peek());
+
+            if (match(TokenType.FOR)) {
+                return forStatement();
+            }
+
+            if (match(TokenType.IF)) {
+                return ifStatement();
+            }
+
+            if (match(TokenType.PARALLEL)) {
+                return parallelForStatement();
+            }
 
-        return expressionStatement();
+            if (match(TokenType.PRINT)) {
+                return printStatement();
+            }
+
+            if (match(TokenType.RETURN)) {
+                return returnStatement();
+            }
+
+            if (match(TokenType.WHILE)) {
+                return whileStatement();
+            }
+
+            if (match(TokenType.YIELD)) {
+                return yieldStatement();
+            }
+
+            if (match(TokenType.LEFT_BRACE)) {
+                return new Stmt.Block(block());
+            }
+
+            return expressionStatement();
+        } finally {
+            nesting--;
+        }
     }
 
     private Stmt forStatement() {
+        var keyword = previous();
         consume(TokenType.LEFT_PAREN, "Expected '(' after 'for'.");
 
         Stmt initializer;
@@ -107,7 +278,7 @@ class Parser {
             condition = new Expr.Literal(true);
         }
 
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(keyword, condition, body);
 
         if (initializer != null) {
             body = new Stmt.Block(List.of(initializer, body));
@@ -116,6 +287,47 @@ class Parser {
         return body;
     }
 
+    // Only counted loops can run in parallel, so the clauses must have the form
+    // "var i = start; i < end; i = i + step", or with "<=" in the condition.
+    private Stmt parallelForStatement() {
+        var keyword = previous();
+        consume(TokenType.FOR, "Expected 'for' after 'parallel'.");
+        consume(TokenType.LEFT_PAREN, "Expected '(' after 'for'.");
+
+        consume(TokenType.VAR, "Expected a loop variable declaration in parallel for.");
+        var variable = consume(TokenType.IDENTIFIER, "Expected variable name.");
+        consume(TokenType.EQUAL, "Expected '=' after the loop variable.");
+        var start = expression();
+        consume(TokenType.SEMICOLON, "Expected ';' after the loop variable declaration.");
+
+        consumeLoopVariable(variable, "The condition of a parallel for must compare the loop variable.");
+        Token operator;
+        if (match(TokenType.LESS) || match(TokenType.LESS_EQUAL)) {
+            operator = previous();
+        } else {
+            throw error(peek(), "Expected '<' or '<=' in the condition of a parallel for.");
+        }
+        var end = expression();
+        consume(TokenType.SEMICOLON, "Expected ';' after loop condition.");
+
+        consumeLoopVariable(variable, "The increment of a parallel for must assign the loop variable.");
+        consume(TokenType.EQUAL, "Expected '=' in the increment of a parallel for.");
+        consumeLoopVariable(variable, "The increment of a parallel for must add to the loop variable.");
+        consume(TokenType.PLUS, "Expected '+' in the increment of a parallel for.");
+        var step = expression();
+        consume(TokenType.RIGHT_PAREN, "Expected ')' after for clauses.");
+
+        var body = statement();
+        return new Stmt.ParallelFor(keyword, variable, start, operator, end, step, body);
+    }
+
+    private void consumeLoopVariable(Token variable, String message) {
+        var name = consume(TokenType.IDENTIFIER, message);
+        if (!name.lexeme().equals(variable.lexeme())) {
+            throw error(name, message);
+        }
+    }
+
     private Stmt ifStatement() {
         consume(TokenType.LEFT_PAREN, "Expected '(' after 'if'.");
         var condition = expression();
@@ -154,12 +366,21 @@ class Parser {
     }
 
     private Stmt whileStatement() {
+        var keyword = previous();
         consume(TokenType.LEFT_PAREN, "Expected '(' after 'while'.");
         var condition = expression();
         consume(TokenType.RIGHT_PAREN, "Expected ')' after condition.");
         var body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
+    }
+
+    private Stmt yieldStatement() {
+        var keyword = previous();
+        var value = check(TokenType.SEMICOLON) ? null : expression();
+
+        consume(TokenType.SEMICOLON, "Expected ';' after yield value.");
+        return new Stmt.Yield(keyword, value);
     }
 
     private Stmt expressionStatement() {
@@ -184,164 +405,165 @@ class Parser {
         consume(TokenType.RIGHT_PAREN, "Expected ')' after parameters.");
 
         consume(TokenType.LEFT_BRACE, "Expected '{' before " + kind + " body.");
-        var body = block();
+        var body = lazy && blockDepth == 0 ? new LazyBody(name, parameters, skipBlock()) : block();
         return new Stmt.Function(name, parameters, body);
     }
 
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
 
-        while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(declaration());
+        blockDepth++;
+        try {
+            while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+                statements.add(declaration());
+            }
+        } finally {
+            blockDepth--;
         }
 
         consume(TokenType.RIGHT_BRACE, "Expected '}' after block.");
         return statements;
     }
 
-    private Expr assignment() {
-        var expr = or();
-
-        if (match(TokenType.EQUAL)) {
-            var equals = previous();
-            var value = assignment();
-
-            if (expr instanceof Expr.Variable) {
-                var name = ((Expr.Variable)expr).name;
-                return new Expr.Assign(name, value);
+    // Skips to the brace closing the current block without parsing anything, and returns the tokens up to and
+    // including it, followed by an EOF.
+    private List<Token> skipBlock() {
+        var start = current;
+        var depth = 1;
+        while (!isAtEnd()) {
+            var type = advance().type();
+            if (type == TokenType.LEFT_BRACE) {
+                depth++;
+            } else if (type == TokenType.RIGHT_BRACE && --depth == 0) {
+                var body = new ArrayList<>(tokens.subList(start, current));
+                body.add(new Token(TokenType.EOF, "", null, previous().line()));
+                return body;
             }
-
-            throw error(equals, "Invalid assignment target.");
         }
 
-        return expr;
+        throw error(peek(), "Expected '}' after block.");
     }
 
-    private Expr or() {
-        var expr = and();
-
-        while (match(TokenType.OR)) {
-            var operator = previous();
-            var right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr and() {
-        var expr = checkNotBinaryOperator();
+    // Also works out the height of the expression, as a left-associative operator makes a tree deeper without the
+    // parser going any deeper. The operands parsed by prefix() and infix() leave theirs in tallest.
+    private Expr parsePrecedence(Precedence precedence) {
+        var outer = tallest;
+        nesting++;
+        try {
+            checkNesting(nesting, peek());
 
-        while (match(TokenType.AND)) {
-            var operator = previous();
-            var right = checkNotBinaryOperator();
-            expr = new Expr.Logical(expr, operator, right);
-        }
+            if (precedence.compareTo(Precedence.OPERAND) <= 0 && isBinaryOperator(peek().type())) {
+                // Discard the operator and its right-hand operand.
+                advance();
+                parsePrecedence(Precedence.TERNARY);
+                throw error(peek(), "Binary operator without left-hand operand.");
+            }
 
-        return expr;
-    }
-
-    private Expr checkNotBinaryOperator() {
-        if (match(
-                TokenType.MINUS,
-                TokenType.PLUS,
-                TokenType.SLASH,
-                TokenType.STAR,
-                TokenType.BANG_EQUAL,
-                TokenType.EQUAL_EQUAL,
-                TokenType.GREATER,
-                TokenType.GREATER_EQUAL,
-                TokenType.LESS,
-                TokenType.LESS_EQUAL)) {
-            // Discard right-hand operand.
-            elvis();
-            throw error(peek(), "Binary operator without left-hand operand.");
-        }
+            tallest = 0;
+            var expr = prefix();
+            var height = tallest + 1;
+            // The expressions around this one are at least a level each.
+            checkNesting(nesting - 1 + height, previous());
+            while (precedence.compareTo(precedences[peek().type().ordinal()]) <= 0) {
+                var operator = advance();
+                tallest = 0;
+                expr = infix(expr, operator);
+                height = Math.max(height, tallest) + 1;
+                checkNesting(nesting - 1 + height, operator);
+            }
 
-        return elvis();
-    }
-
-    // TODO: Fix comma expressions, they conflict with function calls.
-    //private Expr comma() {
-    //    var expr = elvis();
-    //
-    //    while (match(TokenType.COMMA)) {
-    //        expr = elvis();
-    //    }
-    //
-    //    return expr;
-    //}
-
-    private Expr elvis() {
-        var expr = equality();
-
-        if (match(TokenType.QUESTION)) {
-            var operator1 = previous();
-            var middle = elvis();
-            var operator2 = consume(TokenType.COLON, "Expected ':' after '?' in elvis operator.");
-            var right = elvis();
-            expr = new Expr.Ternary(expr, operator1, middle, operator2, right);
+            tallest = Math.max(outer, height);
+            return expr;
+        } finally {
+            nesting--;
         }
-
-        return expr;
     }
 
-    private Expr equality() {
-        var expr = comparison();
-
-        while (match(TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL)) {
-            var operator = previous();
-            var right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
+    private Expr prefix() {
+        var token = peek();
+        return switch (token.type()) {
+            case FALSE -> {
+                advance();
+                yield new Expr.Literal(false);
+            }
+            case TRUE -> {
+                advance();
+                yield new Expr.Literal(true);
+            }
+            case NIL -> {
+                advance();
+                yield new Expr.Literal(null);
+            }
+            case NUMBER, STRING -> {
+                advance();
+                yield new Expr.Literal(token.literal());
+            }
+            case IDENTIFIER -> {
+                advance();
+                yield new Expr.Variable(token);
+            }
+            case THIS -> {
+                advance();
+                yield new Expr.This(token);
+            }
+            case SUPER -> {
+                advance();
+                consume(TokenType.DOT, "Expected '.' after 'super'.");
+                yield new Expr.Super(token, consume(TokenType.IDENTIFIER, "Expected superclass method name."));
+            }
+            case LEFT_PAREN -> {
+                advance();
+                var expr = expression();
+                consume(TokenType.RIGHT_PAREN, "Expected ')' after expression.");
+                yield new Expr.Grouping(expr);
+            }
+            case BANG, MINUS -> {
+                advance();
+                yield new Expr.Unary(token, parsePrecedence(Precedence.UNARY));
+            }
+            default -> throw error(token, "Expected expression.");
+        };
     }
 
-    private Expr comparison() {
-        var expr = term();
-
-        while (match(TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL)) {
-            var operator = previous();
-            var right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
+    private Expr infix(Expr left, Token operator) {
+        return switch (operator.type()) {
+            case EQUAL -> {
+                // Right-associative.
+                var value = parsePrecedence(Precedence.ASSIGNMENT);
 
-    private Expr term() {
-        var expr = factor();
+                if (left instanceof Expr.Variable) {
+                    var name = ((Expr.Variable)left).name;
+                    yield new Expr.Assign(name, value);
+                }
 
-        while (match(TokenType.MINUS, TokenType.PLUS)) {
-            var operator = previous();
-            var right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+                if (left instanceof Expr.Get get) {
+                    yield new Expr.Set(get.object, get.name, value);
+                }
 
-        return expr;
+                throw error(operator, "Invalid assignment target.");
+            }
+            case OR, AND -> new Expr.Logical(left, operator, parsePrecedence(higher(operator)));
+            case QUESTION -> {
+                var middle = parsePrecedence(Precedence.TERNARY);
+                var operator2 = consume(TokenType.COLON, "Expected ':' after '?' in elvis operator.");
+                // Right-associative.
+                var right = parsePrecedence(Precedence.TERNARY);
+                yield new Expr.Ternary(left, operator, middle, operator2, right);
+            }
+            case LEFT_PAREN -> finishCall(left);
+            case DOT -> new Expr.Get(left, consume(TokenType.IDENTIFIER, "Expected property name after '.'."));
+            default -> new Expr.Binary(left, operator, parsePrecedence(higher(operator)));
+        };
     }
 
-    private Expr factor() {
-        var expr = unary();
-
-        while (match(TokenType.SLASH, TokenType.STAR)) {
-            var operator = previous();
-            var right = unary();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
+    // The precedence of the right-hand operand of a left-associative operator.
+    private static Precedence higher(Token operator) {
+        return levels[precedences[operator.type().ordinal()].ordinal() + 1];
     }
 
-    private Expr unary() {
-        if (match(TokenType.BANG, TokenType.MINUS)) {
-            var operator = previous();
-            var right = unary();
-            return new Expr.Unary(operator, right);
-        }
-
-        return call();
+    private static boolean isBinaryOperator(TokenType type) {
+        var precedence = precedences[type.ordinal()];
+        return precedence.compareTo(Precedence.EQUALITY) >= 0 && precedence.compareTo(Precedence.FACTOR) <= 0;
     }
 
     private Expr finishCall(Expr callee) {
@@ -359,56 +581,10 @@ class Parser {
         return new Expr.Call(callee, paren, arguments);
     }
 
-    private Expr call() {
-        var expr = primary();
-
-        while (true) {
-            if (match(TokenType.LEFT_PAREN)) {
-                expr = finishCall(expr);
-            } else {
-                break;
-            }
-        }
-
-        return expr;
-    }
-
-    private Expr primary() {
-        if (match(TokenType.FALSE)) {
-            return new Expr.Literal(false);
-        }
-
-        if (match(TokenType.TRUE)) {
-            return new Expr.Literal(true);
-        }
-
-        if (match(TokenType.NIL)) {
-            return new Expr.Literal(null);
-        }
-
-        if (match(TokenType.NUMBER, TokenType.STRING)) {
-            return new Expr.Literal(previous().literal());
-        }
-
-        if (match(TokenType.IDENTIFIER)) {
-            return new Expr.Variable(previous());
-        }
-
-        if (match(TokenType.LEFT_PAREN)) {
-            var expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expected ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
-
-        throw error(peek(), "Expected expression.");
-    }
-
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
 
         return false;
@@ -439,6 +615,10 @@ class Parser {
     }
 
     private Token peek() {
+        if (current == tokens.size()) {
+            tokens.add(scanner.nextToken());
+        }
+
         return tokens.get(current);
     }
 
@@ -446,8 +626,26 @@ class Parser {
         return tokens.get(current - 1);
     }
 
+    private void checkNesting(long levels, Token token) {
+        if (levels > maxNesting) {
+            reporter.error(token, "Too deeply nested.");
+            throw new NestingError();
+        }
+    }
+
+    // Reports a stack overflow once it has been unwound, for a thread with less stack than the limit is for.
+    private void tooDeep() {
+        reporter.error(peek(), "Too deeply nested.");
+    }
+
+    private void skipToEnd() {
+        while (!isAtEnd()) {
+            advance();
+        }
+    }
+
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        reporter.error(token, message);
         return new ParseError();
     }
 
@@ -466,9 +664,11 @@ class Parser {
                 case VAR:
                 case FOR:
                 case IF:
+                case PARALLEL:
                 case WHILE:
                 case PRINT:
                 case RETURN:
+                case YIELD:
                     return;
                 default:
                     break;
@@ -0,0 +1,105 @@
+package me.elinge.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// A script that has been scanned, parsed and resolved, for embedding jlox in a Java program. Nothing about it changes
+// once compiled, so the same program can be run any number of times, also on many threads at once. Every run gets an
+// interpreter and globals of its own.
+public final class Program {
+    private final List<Stmt> statements;
+    // The property gets and sets, whose inline caches hold the shapes of the classes of a run. Every run makes classes
+    // of its own, so the caches are emptied when a run starts, or after a few runs every site would be megamorphic and
+    // the caches would keep the classes of earlier runs alive. Runs at the same time still share them.
+    final List<Expr> propertySites;
+
+    private Program(List<Stmt> statements, List<Expr> propertySites) {
+        this.statements = statements;
+        this.propertySites = propertySites;
+    }
+
+    // Throws a LoxException with every syntax and resolution error in the source if there were any.
+    public static Program compile(String source) throws LoxException {
+        var errors = new ByteArrayOutputStream();
+        var reporter = new ErrorReporter(new PrintStream(errors));
+
+        // Function bodies are parsed right away, so that all the errors are found here and runs never need to report
+        // any of their own.
+        var tokens = new Scanner(source, reporter).scanTokens();
+        var statements = new Parser(tokens, false, reporter).parse();
+        var propertySites = new ArrayList<Expr>();
+        if (!reporter.hadError) {
+            new Resolver(reporter, propertySites).resolve(statements);
+        }
+
+        if (reporter.hadError) {
+            throw new LoxException(errors.toString().strip(), reporter.firstErrorLine);
+        }
+
+        return new Program(statements, propertySites);
+    }
+
+    public void run(PrintStream out) throws LoxException {
+        run(out, null);
+    }
+
+    // Runs the program with what is printed going to out, which gets it in large writes and is flushed at the end. If
+    // globals is given, its entries are defined as global variables before the program starts, and afterwards it gets
+    // the values of all the globals the program left behind, whether it finished or not. Java numbers are turned into
+    // Lox numbers; other values are passed as they are.
+    public void run(PrintStream out, Map<String, Object> globals) throws LoxException {
+        run(out, globals, null);
+    }
+
+    // The same, but the run fails once it goes over the budget if one is given.
+    public void run(PrintStream out, Map<String, Object> globals, Budget budget) throws LoxException {
+        var output = new Output(Channels.newChannel(out));
+        var interpreter = new Interpreter(output, new ErrorReporter(new PrintStream(OutputStream.nullOutputStream())));
+        interpreter.limit(budget);
+        if (globals != null) {
+            for (var entry : globals.entrySet()) {
+                interpreter.globals.define(entry.getKey(), toLox(entry.getValue()));
+            }
+        }
+
+        for (var site : propertySites) {
+            if (site instanceof Expr.Get get) {
+                get.cache = null;
+            } else {
+                ((Expr.Set)site).cache = null;
+            }
+        }
+
+        try {
+            interpreter.run(statements);
+        } catch (RuntimeError error) {
+            throw new LoxException(error.getMessage(), error.token.line());
+        } finally {
+            output.flush();
+            out.flush();
+            interpreter.finish();
+            if (globals != null) {
+                for (var entry : interpreter.globals.variables().entrySet()) {
+                    if (entry.getValue() instanceof Rope rope) {
+                        globals.put(entry.getKey(), rope.toString());
+                    } else if (!(entry.getValue() instanceof Native)) {
+                        globals.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private static Object toLox(Object value) {
+        if (value instanceof Number number && !(value instanceof Double)) {
+            return number.doubleValue();
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,85 @@
+package me.elinge.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+// Resolved programs stored on disk by a hash of their source, so running the same file again can skip scanning,
+// parsing and resolving. The cache is only an optimization: anything that goes wrong with it counts as a miss.
+class ProgramCache {
+    // Bump whenever the AST, its serialized form or that of snapshots changes.
+    static final int VERSION = 6;
+    private static final byte[] MAGIC = "jlox".getBytes(StandardCharsets.US_ASCII);
+
+    private final Path directory;
+
+    ProgramCache(Path directory) {
+        this.directory = directory;
+    }
+
+    static Path defaultDirectory() {
+        var cacheHome = System.getenv("XDG_CACHE_HOME");
+        if (cacheHome == null || cacheHome.isEmpty()) {
+            return Path.of(System.getProperty("user.home"), ".cache", "jlox");
+        }
+
+        return Path.of(cacheHome, "jlox");
+    }
+
+    // Lazy parsing changes the shape of the tree, so it is part of the key. So is the stack size, which decides how
+    // deeply the tree may be nested.
+    String key(String source, boolean lazy, long stackSize) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(String.format("%d %b %d%n", VERSION, lazy, stackSize).getBytes(StandardCharsets.UTF_8));
+            digest.update(source.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Returns null if there's no usable entry for the key.
+    List<Stmt> load(String key) {
+        try {
+            var bytes = Files.readAllBytes(directory.resolve(key));
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (bytes.length <= i || bytes[i] != MAGIC[i]) {
+                    return null;
+                }
+            }
+
+            return AstSerializer.deserialize(ByteBuffer.wrap(bytes, MAGIC.length, bytes.length - MAGIC.length));
+        } catch (IOException | RuntimeException e) {
+            // Whatever a corrupt entry makes decoding throw.
+            return null;
+        }
+    }
+
+    void store(String key, List<Stmt> statements) {
+        try {
+            Files.createDirectories(directory);
+
+            // Write to a temporary file first so that a concurrent run never sees half an entry.
+            var temporary = Files.createTempFile(directory, key, ".tmp");
+            try {
+                try (var out = Files.newOutputStream(temporary)) {
+                    out.write(MAGIC);
+                    out.write(AstSerializer.serialize(statements));
+                }
+                Files.move(temporary, directory.resolve(key), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            // Not being able to cache is fine.
+        }
+    }
+}
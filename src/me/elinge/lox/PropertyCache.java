@@ -0,0 +1,108 @@
+package me.elinge.lox;
+
+// The inline cache of a property access, what it found for the shapes of the instances it has gone through so far. A
+// get or a method call remembers the slot of the field, or the method if there is no field by that name. A set
+// remembers the slot, and the shape the instance moves to if the field is new. Going through the site again with an
+// instance of one of those shapes is then a comparison of shapes for every entry instead of hashing the name. A site
+// that has only seen one shape is monomorphic, one that has seen up to MAX_SHAPES polymorphic, and past that it is
+// megamorphic and looks the property up in the shape every time.
+//
+// A cache is never changed, a miss gives the site a new one with the entry added. Interpreters running at the same time
+// can lose each other's entries that way, which only costs them another miss.
+final class PropertyCache {
+    static final int MAX_SHAPES = 4;
+    static final PropertyCache MEGAMORPHIC = new PropertyCache(new Shape[0], new int[0], new Function[0], new Shape[0]);
+
+    private final Shape[] shapes;
+    // -1 where the entry is for a method.
+    private final int[] slots;
+    private final Function[] methods;
+    // The shape after setting the field, the same one if it isn't new.
+    private final Shape[] transitions;
+
+    private PropertyCache(Shape[] shapes, int[] slots, Function[] methods, Shape[] transitions) {
+        this.shapes = shapes;
+        this.slots = slots;
+        this.methods = methods;
+        this.transitions = transitions;
+    }
+
+    // The entry for shape, or -1 if there isn't one.
+    int find(Shape shape) {
+        for (int i = 0; i < shapes.length; i++) {
+            if (shapes[i] == shape) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    int slot(int entry) {
+        return slots[entry];
+    }
+
+    Function method(int entry) {
+        return methods[entry];
+    }
+
+    Shape transition(int entry) {
+        return transitions[entry];
+    }
+
+    // Looks up a property the way a get does. Returns null if instances of shape have neither a field nor a method by
+    // that name.
+    static PropertyCache get(PropertyCache cache, Shape shape, String name) {
+        var slot = shape.slot(name);
+        var method = slot < 0 ? shape.owner.findMethod(name) : null;
+        if (slot < 0 && method == null) {
+            return null;
+        }
+
+        return add(cache, shape, slot, method, null);
+    }
+
+    // Looks up a field the way a set does, which adds it if instances of shape don't have it.
+    static PropertyCache set(PropertyCache cache, Shape shape, String name) {
+        var slot = shape.slot(name);
+        if (slot >= 0) {
+            return add(cache, shape, slot, null, shape);
+        }
+
+        return add(cache, shape, shape.size, null, shape.with(name));
+    }
+
+    // The cache with an entry added, or if the site is megamorphic one with only that entry, which the site doesn't
+    // keep. Sites start out with a null cache.
+    private static PropertyCache add(PropertyCache cache, Shape shape, int slot, Function method, Shape transition) {
+        var size = cache == null ? 0 : cache.shapes.length;
+        if (cache == MEGAMORPHIC || size == MAX_SHAPES) {
+            size = 0;
+        }
+
+        var shapes = new Shape[size + 1];
+        var slots = new int[size + 1];
+        var methods = new Function[size + 1];
+        var transitions = new Shape[size + 1];
+        if (size > 0) {
+            System.arraycopy(cache.shapes, 0, shapes, 0, size);
+            System.arraycopy(cache.slots, 0, slots, 0, size);
+            System.arraycopy(cache.methods, 0, methods, 0, size);
+            System.arraycopy(cache.transitions, 0, transitions, 0, size);
+        }
+        shapes[size] = shape;
+        slots[size] = slot;
+        methods[size] = method;
+        transitions[size] = transition;
+        return new PropertyCache(shapes, slots, methods, transitions);
+    }
+
+    // The cache a site keeps after a miss: the one add() made, unless the site is megamorphic now.
+    static PropertyCache kept(PropertyCache previous, PropertyCache added) {
+        if (previous == MEGAMORPHIC || previous != null && previous.shapes.length == MAX_SHAPES) {
+            return MEGAMORPHIC;
+        }
+
+        return added;
+    }
+}
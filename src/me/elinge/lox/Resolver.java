@@ -6,17 +6,42 @@ import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
     private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final ErrorReporter reporter;
     private FunctionType currentFunction = FunctionType.NONE;
+    private ClassType currentClass = ClassType.NONE;
+    // The index in scopes of the innermost parallel for loop's scope, or -1 outside of one. Only variables declared in
+    // it or in scopes above it may be assigned, so its iterations can't interfere with each other.
+    private int parallelScope = -1;
+    // Whether a return would leave the body of a parallel for, as opposed to a function declared inside it.
+    private boolean inParallelBody = false;
+    // Whether the current function has a yield statement, which makes it a generator, and the first return in it that
+    // has a value, which a generator can't have.
+    private boolean yielded = false;
+    private Stmt.Return valueReturn = null;
+    // Where to add every property get and set, if anywhere, see Program.
+    private final List<Expr> propertySites;
+
+    Resolver(ErrorReporter reporter) {
+        this(reporter, null);
+    }
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    Resolver(ErrorReporter reporter, List<Expr> propertySites) {
+        this.reporter = reporter;
+        this.propertySites = propertySites;
     }
 
     private enum FunctionType {
         NONE,
         FUNCTION,
+        METHOD,
+        INITIALIZER,
+    }
+
+    private enum ClassType {
+        NONE,
+        CLASS,
+        SUBCLASS,
     }
 
     void resolve(List<Stmt> statements) {
@@ -33,6 +58,40 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        var enclosingClass = currentClass;
+        currentClass = ClassType.CLASS;
+
+        declare(stmt.name);
+        define(stmt.name);
+
+        if (stmt.superclass != null) {
+            if (stmt.superclass.name.lexeme().equals(stmt.name.lexeme())) {
+                reporter.error(stmt.superclass.name, "A class can't inherit from itself.");
+            }
+
+            currentClass = ClassType.SUBCLASS;
+            resolve(stmt.superclass);
+
+            // The methods close over an environment with the superclass in it. "this" goes in with the parameters.
+            beginScope();
+            scopes.peek().put("super", true);
+        }
+
+        for (var method : stmt.methods) {
+            var type = method.name.lexeme().equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            method.generator = resolveFunction(method.params, method.body, type);
+        }
+
+        if (stmt.superclass != null) {
+            endScope();
+        }
+
+        currentClass = enclosingClass;
+        return null;
+    }
+
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
         resolve(stmt.expression);
@@ -44,7 +103,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         declare(stmt.name);
         define(stmt.name);
 
-        resolveFunction(stmt, FunctionType.FUNCTION);
+        // Resolved once it gets parsed.
+        if (stmt.body instanceof LazyBody) {
+            return null;
+        }
+
+        stmt.generator = resolveFunction(stmt.params, stmt.body, FunctionType.FUNCTION);
         return null;
     }
 
@@ -58,6 +122,28 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitParallelForStmt(Stmt.ParallelFor stmt) {
+        resolve(stmt.start);
+        resolve(stmt.end);
+        resolve(stmt.step);
+
+        var enclosingParallelScope = parallelScope;
+        var enclosingInParallelBody = inParallelBody;
+
+        beginScope();
+        declare(stmt.variable);
+        define(stmt.variable);
+        parallelScope = scopes.size() - 1;
+        inParallelBody = true;
+        resolve(stmt.body);
+        endScope();
+
+        parallelScope = enclosingParallelScope;
+        inParallelBody = enclosingInParallelBody;
+        return null;
+    }
+
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         resolve(stmt.expression);
@@ -67,9 +153,42 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code.");
+            reporter.error(stmt.keyword, "Can't return from top-level code.");
+        }
+
+        if (inParallelBody) {
+            reporter.error(stmt.keyword, "Can't return from inside a parallel for.");
         }
 
+        if (stmt.value != null) {
+            if (currentFunction == FunctionType.INITIALIZER) {
+                reporter.error(stmt.keyword, "Can't return a value from an initializer.");
+            }
+
+            if (valueReturn == null) {
+                valueReturn = stmt;
+            }
+            resolve(stmt.value);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        if (currentFunction == FunctionType.NONE) {
+            reporter.error(stmt.keyword, "Can't yield from top-level code.");
+        }
+
+        if (inParallelBody) {
+            reporter.error(stmt.keyword, "Can't yield from inside a parallel for.");
+        }
+
+        if (currentFunction == FunctionType.INITIALIZER) {
+            reporter.error(stmt.keyword, "Can't yield from an initializer.");
+        }
+
+        yielded = true;
         if (stmt.value != null) {
             resolve(stmt.value);
         }
@@ -97,7 +216,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveLocal(expr.name);
+
+        if (parallelScope >= 0 && (expr.depth < 0 || scopes.size() - 1 - expr.depth < parallelScope)) {
+            reporter.error(expr.name, "Can't assign to a variable declared outside of a parallel for.");
+        }
+
         return null;
     }
 
@@ -119,6 +243,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        if (propertySites != null) {
+            propertySites.add(expr);
+        }
+        resolve(expr.object);
+        return null;
+    }
+
     @Override
     public Void visitGroupingExpr(Expr.Grouping expr) {
         resolve(expr.expression);
@@ -137,6 +270,39 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        if (propertySites != null) {
+            propertySites.add(expr);
+        }
+        resolve(expr.value);
+        resolve(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        if (currentClass == ClassType.NONE) {
+            reporter.error(expr.keyword, "Can't use 'super' outside of a class.");
+        } else if (currentClass != ClassType.SUBCLASS) {
+            reporter.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+        }
+
+        expr.depth = resolveLocal(expr.keyword.lexeme());
+        expr.thisDepth = resolveLocal("this");
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        if (currentClass == ClassType.NONE) {
+            reporter.error(expr.keyword, "Can't use 'this' outside of a class.");
+        }
+
+        expr.depth = resolveLocal(expr.keyword.lexeme());
+        return null;
+    }
+
     @Override
     public Void visitUnaryExpr(Expr.Unary expr) {
         resolve(expr.right);
@@ -154,10 +320,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
         if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme()) == Boolean.FALSE) {
-            Lox.error(expr.name, "Can't read local variable in its own initalizer.");
+            reporter.error(expr.name, "Can't read local variable in its own initalizer.");
         }
 
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveLocal(expr.name);
         return null;
     }
 
@@ -169,19 +335,42 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         expr.accept(this);
     }
 
-    private void resolveFunction(Stmt.Function function, FunctionType type) {
+    // Resolves the body of a top-level function on its own, see LazyBody. Returns whether the function is a generator.
+    boolean resolveFunction(List<Token> params, List<Stmt> body) {
+        return resolveFunction(params, body, FunctionType.FUNCTION);
+    }
+
+    private boolean resolveFunction(List<Token> params, List<Stmt> body, FunctionType type) {
         var enclosingFunction = currentFunction;
+        var enclosingInParallelBody = inParallelBody;
+        var enclosingYielded = yielded;
+        var enclosingValueReturn = valueReturn;
         currentFunction = type;
+        inParallelBody = false;
+        yielded = false;
+        valueReturn = null;
 
         beginScope();
-        for (Token param : function.params) {
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            scopes.peek().put("this", true);
+        }
+        for (Token param : params) {
             declare(param);
             define(param);
         }
-        resolve(function.body);
+        resolve(body);
         endScope();
 
+        var generator = yielded;
+        if (generator && valueReturn != null) {
+            reporter.error(valueReturn.keyword, "Can't return a value from a generator.");
+        }
+
         currentFunction = enclosingFunction;
+        inParallelBody = enclosingInParallelBody;
+        yielded = enclosingYielded;
+        valueReturn = enclosingValueReturn;
+        return generator;
     }
 
     private void beginScope() {
@@ -199,7 +388,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         var scope = scopes.peek();
         if (scope.containsKey(name.lexeme())) {
-            Lox.error(name, "There's already a variable with this name in this scope.");
+            reporter.error(name, "There's already a variable with this name in this scope.");
         }
 
         scope.put(name.lexeme(), false);
@@ -213,12 +402,18 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         scopes.peek().put(name.lexeme(), true);
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // Returns how many scopes away the variable is, or -1 if it wasn't found and is assumed to be global.
+    private int resolveLocal(Token name) {
+        return resolveLocal(name.lexeme());
+    }
+
+    private int resolveLocal(String name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme())) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            if (scopes.get(i).containsKey(name)) {
+                return scopes.size() - 1 - i;
             }
         }
+
+        return -1;
     }
 }
@@ -0,0 +1,156 @@
+package me.elinge.lox;
+
+import java.util.ArrayDeque;
+
+// A Lox string made by concatenating two others, which are only copied into one when the whole string is needed. Lox
+// strings are either Strings or Ropes, so building a string a piece at a time in a loop doesn't copy everything built
+// so far on every step. Once flattened, a rope keeps the result and lets go of its pieces.
+//
+// Making a rope only counts the rope itself against the budget of the script, see Interpreter. The string it flattens
+// into is counted when that happens, which is too late to fail, so a script that went over its budget that way stops
+// at its next allocation.
+final class Rope implements CharSequence {
+    // Shorter concatenations are just copied, a rope wouldn't save anything on them.
+    static final int MIN_LENGTH = 256;
+
+    // Strings or Ropes, or null once flattened. Set to null only after flat is set, so whoever sees null here also sees
+    // flat.
+    private volatile CharSequence left;
+    private volatile CharSequence right;
+    private volatile String flat = null;
+    private final int length;
+    // What flattening is counted against, or null.
+    private final Budget budget;
+
+    private Rope(CharSequence left, CharSequence right, int length, Budget budget) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+        this.budget = budget;
+    }
+
+    // Counts the string a rope flattens into against budget, which may be null. The caller makes sure the length fits
+    // in an int.
+    static CharSequence concat(CharSequence left, CharSequence right, Budget budget) {
+        var length = left.length() + right.length();
+        if (length < MIN_LENGTH) {
+            return left.toString() + right;
+        }
+
+        return new Rope(left, right, length, budget);
+    }
+
+    // The Java string of a Lox value, or null if it isn't a string.
+    static String string(Object value) {
+        if (value instanceof String string) {
+            return string;
+        }
+
+        if (value instanceof Rope rope) {
+            return rope.toString();
+        }
+
+        return null;
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    static boolean equal(CharSequence a, CharSequence b) {
+        if (a == b) {
+            return true;
+        }
+
+        if (a.length() != b.length()) {
+            return false;
+        }
+
+        return a.toString().equals(b.toString());
+    }
+
+    // Lexicographic order by code point. String.compareTo() goes by UTF-16 code unit instead, which puts characters
+    // outside of the Basic Multilingual Plane before U+E000 to U+FFFF.
+    static int compare(String a, String b) {
+        if (a == b) {
+            return 0;
+        }
+
+        var length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            var x = a.charAt(i);
+            var y = b.charAt(i);
+            if (x != y) {
+                if (x >= 0xd800 && y >= 0xd800) {
+                    // Move the surrogates above the other code units, where what they encode belongs.
+                    return fixUp(x) - fixUp(y);
+                }
+
+                return x - y;
+            }
+        }
+
+        return a.length() - b.length();
+    }
+
+    private static int fixUp(char c) {
+        return c >= 0xe000 ? c - 0x800 : c + 0x2000;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        var result = flat;
+        return result != null ? result : flatten();
+    }
+
+    // Without recursion, a string built in a loop is a rope as deep as the loop ran.
+    private synchronized String flatten() {
+        if (flat != null) {
+            return flat;
+        }
+
+        var builder = new StringBuilder(length);
+        var pending = new ArrayDeque<CharSequence>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            var next = pending.pop();
+            if (!(next instanceof Rope rope)) {
+                builder.append(next);
+                continue;
+            }
+
+            var done = rope.flat;
+            var left = rope.left;
+            var right = rope.right;
+            if (done != null || left == null || right == null) {
+                builder.append(rope.flat);
+            } else {
+                pending.push(right);
+                pending.push(left);
+            }
+        }
+
+        flat = builder.toString();
+        if (budget != null) {
+            budget.record(Budget.STRING_SIZE + Budget.CHAR_SIZE * length);
+        }
+        left = null;
+        right = null;
+        return flat;
+    }
+}
@@ -20,6 +20,11 @@ class Rpn implements Expr.Visitor<String> {
         return "(TODO: call expression)";
     }
 
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return expr.object.accept(this) + " ." + expr.name.lexeme();
+    }
+
     @Override
     public String visitGroupingExpr(Expr.Grouping expr) {
         return expr.expression.accept(this);
@@ -39,6 +44,25 @@ class Rpn implements Expr.Visitor<String> {
                 expr.operator.lexeme());
     }
 
+    @Override
+    public String visitSetExpr(Expr.Set expr) {
+        return String.format(
+                "%s %s .%s =",
+                expr.object.accept(this),
+                expr.value.accept(this),
+                expr.name.lexeme());
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super expr) {
+        return "super ." + expr.method.lexeme();
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This expr) {
+        return "this";
+    }
+
     @Override
     public String visitUnaryExpr(Expr.Unary expr) {
         return String.format(
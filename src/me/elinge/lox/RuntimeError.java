@@ -4,7 +4,8 @@ class RuntimeError extends RuntimeException {
     final Token token;
 
     RuntimeError(Token token, String message) {
-        super(message);
+        // Reported with the line of the token, the Java stack trace would never be looked at.
+        super(message, null, false, false);
         this.token = token;
     }
 }
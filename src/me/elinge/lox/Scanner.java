@@ -6,7 +6,9 @@ import java.util.Map;
 
 public class Scanner {
     private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final ErrorReporter reporter;
+    // The token produced by the last call to scanToken(), if any.
+    private Token scanned;
     private int start = 0, current = 0, line = 1;
     private static final Map<String, TokenType> keywords;
 
@@ -21,27 +23,43 @@ public class Scanner {
                 Map.entry("if",     TokenType.IF),
                 Map.entry("nil",    TokenType.NIL),
                 Map.entry("or",     TokenType.OR),
+                Map.entry("parallel", TokenType.PARALLEL),
                 Map.entry("print",  TokenType.PRINT),
                 Map.entry("return", TokenType.RETURN),
                 Map.entry("super",  TokenType.SUPER),
                 Map.entry("this",   TokenType.THIS),
                 Map.entry("true",   TokenType.TRUE),
                 Map.entry("var",    TokenType.VAR),
-                Map.entry("while",  TokenType.WHILE));
+                Map.entry("while",  TokenType.WHILE),
+                Map.entry("yield",  TokenType.YIELD));
     }
 
-    Scanner(String source) {
+    Scanner(String source, ErrorReporter reporter) {
         this.source = source;
+        this.reporter = reporter;
     }
 
     List<Token> scanTokens() {
-        while (!isAtEnd()) {
+        var tokens = new ArrayList<Token>();
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.type() != TokenType.EOF);
+
+        return tokens;
+    }
+
+    // Scans on demand up to the next token, so callers can pull tokens one at a time. Returns EOF once the source is
+    // exhausted, and keeps returning it on further calls.
+    Token nextToken() {
+        scanned = null;
+        while (scanned == null && !isAtEnd()) {
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(TokenType.EOF, "", null, line));
-        return tokens;
+        return scanned != null ? scanned : new Token(TokenType.EOF, "", null, line);
     }
 
     private void scanToken() {
@@ -146,7 +164,7 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, String.format("Unexpected character \"%s\".", c));
+                    reporter.error(line, String.format("Unexpected character \"%s\".", c));
                 }
                 break;
         }
@@ -189,7 +207,7 @@ public class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string literal.");
+            reporter.error(line, "Unterminated string literal.");
             return;
         }
 
@@ -198,7 +216,8 @@ public class Scanner {
 
         // Trim the surrounding quotation marks.
         var value = source.substring(start + 1, current - 1);
-        addToken(TokenType.STRING, value);
+        // Interned, so that the same literal in different places is the same string and comparing them is quick.
+        addToken(TokenType.STRING, value.intern());
     }
 
     private boolean match(char expected) {
@@ -256,6 +275,6 @@ public class Scanner {
 
     private void addToken(TokenType type, Object literal) {
         var text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        scanned = new Token(type, text, literal, line);
     }
 }
@@ -0,0 +1,46 @@
+package me.elinge.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The layout of the fields of an instance, shared by every instance of a class that got the same fields in the same
+// order. The values of the fields are kept in an array in the instance, and the shape says which slot each one is in.
+// An instance starts out with the empty shape of its class, and adding a field moves it to the shape with that field
+// added, which is kept as a transition of the shape before so that every instance adding it after that moves to the
+// same one. Shapes never change once they are made, and one belongs to a single class, so the shape of an instance is
+// enough to tell whether a field or method found for it before is still the one, see PropertyCache.
+final class Shape {
+    final LoxClass owner;
+    // The number of fields, which is also the slot the next one goes in.
+    final int size;
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new ConcurrentHashMap<>();
+
+    // The empty shape of a class.
+    Shape(LoxClass owner) {
+        this.owner = owner;
+        this.size = 0;
+        this.slots = Map.of();
+    }
+
+    private Shape(Shape previous, String name) {
+        var slots = new HashMap<>(previous.slots);
+        slots.put(name, previous.size);
+        this.owner = previous.owner;
+        this.size = previous.size + 1;
+        this.slots = slots;
+    }
+
+    // The slot of a field, or -1 if instances of this shape don't have it.
+    int slot(String name) {
+        var slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // The shape with one more field.
+    Shape with(String name) {
+        var next = transitions.get(name);
+        return next != null ? next : transitions.computeIfAbsent(name, key -> new Shape(this, key));
+    }
+}
@@ -0,0 +1,344 @@
+package me.elinge.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The global environment of an interpreter saved to a file, so that a prelude can be run once and later runs can
+// start from its result. Everything reachable from the globals is saved: plain values, functions and the environments
+// they closed over, lists and maps with their contents, and classes with their methods, keeping them shared the way
+// they were. Natives are saved by name. Instances, tasks and the other values that belong to a running program can't
+// be saved.
+class Snapshot {
+    private static final byte[] MAGIC = "jlox-snapshot".getBytes(StandardCharsets.US_ASCII);
+
+    // Value tags.
+    private static final int NIL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+    private static final int FUNCTION = 5;
+    private static final int NATIVE = 6;
+    // A list, map or class, by its number.
+    private static final int OBJECT = 7;
+
+    // Object kinds.
+    private static final int LIST = 0;
+    private static final int MAP = 1;
+    private static final int CLASS = 2;
+
+    // Something reachable from the globals whose contents are still to be looked at, and the variable it was first
+    // reached through, to name in an error.
+    private record Reached(Object object, String name) {}
+
+    private final Map<Environment, Integer> environments = new LinkedHashMap<>();
+    private final Map<Stmt.Function, Integer> declarations = new IdentityHashMap<>();
+    private final List<Stmt.Function> declarationOrder = new ArrayList<>();
+    private final Map<Object, Integer> objects = new IdentityHashMap<>();
+    private final List<Object> objectOrder = new ArrayList<>();
+
+    // Every value is checked before anything is written, and the snapshot is written to a temporary file next to path
+    // and then moved into place, so a snapshot that can't be saved leaves what was at path as it was.
+    static void save(Environment globals, Path path) throws IOException {
+        var snapshot = new Snapshot();
+        snapshot.collect(globals);
+
+        var directory = path.toAbsolutePath().getParent();
+        var temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.write(MAGIC);
+                out.writeInt(ProgramCache.VERSION);
+                snapshot.write(out);
+            }
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    static void restore(Interpreter interpreter, Path path) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            var magic = in.readNBytes(MAGIC.length);
+            if (!ByteBuffer.wrap(magic).equals(ByteBuffer.wrap(MAGIC))) {
+                throw new IOException(String.format("%s is not a snapshot.", path));
+            }
+
+            if (in.readInt() != ProgramCache.VERSION) {
+                throw new IOException(String.format("%s was made by a different version of jlox.", path));
+            }
+
+            read(in, interpreter);
+        }
+    }
+
+    // Numbers every environment, list, map and class reachable from the globals, each environment after the one it
+    // encloses, and every function declaration. Objects are marked when first seen and their contents looked at later,
+    // so deep closure chains and nested lists don't need deep recursion. Fails on the first value that can't be saved.
+    private void collect(Environment globals) throws IOException {
+        var pending = new ArrayList<Reached>();
+        add(globals, pending);
+
+        while (!pending.isEmpty()) {
+            var reached = pending.remove(pending.size() - 1);
+            if (reached.object() instanceof Environment environment) {
+                for (var entry : environment.variables().entrySet()) {
+                    visit(entry.getValue(), entry.getKey(), pending);
+                }
+            } else if (reached.object() instanceof LoxList list) {
+                for (var element : list.elements()) {
+                    visit(element, reached.name(), pending);
+                }
+            } else if (reached.object() instanceof LoxMap map) {
+                for (var item : map.entries()) {
+                    visit(item, reached.name(), pending);
+                }
+            } else {
+                for (var method : ((LoxClass)reached.object()).methods().values()) {
+                    visit(method, reached.name(), pending);
+                }
+            }
+        }
+    }
+
+    private void visit(Object value, String name, List<Reached> pending) throws IOException {
+        if (value instanceof Function function) {
+            if (!declarations.containsKey(function.declaration())) {
+                declarations.put(function.declaration(), declarations.size());
+                declarationOrder.add(function.declaration());
+            }
+            add(function.closure(), pending);
+        } else if (value instanceof LoxList || value instanceof LoxMap || value instanceof LoxClass) {
+            if (!objects.containsKey(value)) {
+                objects.put(value, objects.size());
+                objectOrder.add(value);
+                pending.add(new Reached(value, name));
+            }
+        } else if (!(value == null
+                || value instanceof Boolean
+                || value instanceof Double
+                || Rope.isString(value)
+                || value instanceof Native)) {
+            throw new IOException(String.format("\"%s\" holds %s, which can't be saved.", name, value));
+        }
+    }
+
+    private void add(Environment environment, List<Reached> pending) {
+        if (environments.containsKey(environment)) {
+            return;
+        }
+
+        if (environment.enclosing != null) {
+            add(environment.enclosing, pending);
+        }
+
+        environments.put(environment, environments.size());
+        pending.add(new Reached(environment, null));
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(declarationOrder.size());
+        for (var declaration : declarationOrder) {
+            var bytes = AstSerializer.serialize(List.of(declaration));
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        // First how the environments nest, so they can all be created before anything refers to them.
+        out.writeInt(environments.size());
+        for (var environment : environments.keySet()) {
+            out.writeInt(environment.enclosing == null ? -1 : environments.get(environment.enclosing));
+        }
+
+        // Then the lists, maps and classes, which are also all made before anything refers to them. A class is made
+        // with its methods, which only refer to declarations and environments.
+        out.writeInt(objectOrder.size());
+        for (var object : objectOrder) {
+            if (object instanceof LoxList) {
+                out.writeByte(LIST);
+            } else if (object instanceof LoxMap) {
+                out.writeByte(MAP);
+            } else {
+                var loxClass = (LoxClass)object;
+                out.writeByte(CLASS);
+                writeString(out, loxClass.name);
+                var methods = loxClass.methods();
+                out.writeInt(methods.size());
+                for (var entry : methods.entrySet()) {
+                    var method = entry.getValue();
+                    writeString(out, entry.getKey());
+                    out.writeInt(declarations.get(method.declaration()));
+                    out.writeInt(environments.get(method.closure()));
+                    out.writeBoolean(method.initializer());
+                }
+            }
+        }
+
+        for (var environment : environments.keySet()) {
+            var variables = environment.variables();
+            out.writeInt(variables.size());
+            for (var entry : variables.entrySet()) {
+                writeString(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        }
+
+        for (var object : objectOrder) {
+            if (object instanceof LoxList list) {
+                writeValues(out, list.elements());
+            } else if (object instanceof LoxMap map) {
+                writeValues(out, map.entries());
+            }
+        }
+    }
+
+    private void writeValues(DataOutputStream out, Object[] values) throws IOException {
+        out.writeInt(values.length);
+        for (var value : values) {
+            writeValue(out, value);
+        }
+    }
+
+    private void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NIL);
+        } else if (value instanceof Boolean bool) {
+            out.writeByte(bool ? TRUE : FALSE);
+        } else if (value instanceof Double number) {
+            out.writeByte(NUMBER);
+            out.writeDouble(number);
+        } else if (Rope.isString(value)) {
+            out.writeByte(STRING);
+            writeString(out, Rope.string(value));
+        } else if (value instanceof Function function) {
+            out.writeByte(FUNCTION);
+            out.writeInt(declarations.get(function.declaration()));
+            out.writeInt(environments.get(function.closure()));
+        } else if (value instanceof Native function) {
+            out.writeByte(NATIVE);
+            writeString(out, function.name());
+        } else if (objects.containsKey(value)) {
+            out.writeByte(OBJECT);
+            out.writeInt(objects.get(value));
+        } else {
+            // Ruled out by collect().
+            throw new IllegalStateException("Can't save " + value);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        var bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void read(DataInputStream in, Interpreter interpreter) throws IOException {
+        var declarations = new ArrayList<Stmt.Function>();
+        var count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            var bytes = in.readNBytes(in.readInt());
+            declarations.add((Stmt.Function)AstSerializer.deserialize(ByteBuffer.wrap(bytes)).get(0));
+        }
+
+        // The globals come first and get restored into the ones of the interpreter, which already has the natives.
+        var environments = new ArrayList<Environment>();
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            var enclosing = in.readInt();
+            environments.add(enclosing < 0 ? interpreter.globals : new Environment(environments.get(enclosing)));
+        }
+
+        var objects = new ArrayList<Object>();
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            var kind = in.readUnsignedByte();
+            switch (kind) {
+                case LIST -> objects.add(LoxList.create(interpreter));
+                case MAP -> objects.add(LoxMap.create(interpreter));
+                case CLASS -> {
+                    var name = readString(in);
+                    var methods = new HashMap<String, Function>();
+                    var methodCount = in.readInt();
+                    for (int j = 0; j < methodCount; j++) {
+                        var methodName = readString(in);
+                        var declaration = declarations.get(in.readInt());
+                        var closure = environments.get(in.readInt());
+                        methods.put(methodName, new Function(declaration, closure, in.readBoolean()));
+                    }
+                    // The methods of the superclass are already among them.
+                    objects.add(new LoxClass(name, null, methods));
+                }
+                default -> throw new IOException("Unknown object kind " + kind + ".");
+            }
+        }
+
+        for (var environment : environments) {
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                var name = readString(in);
+                environment.define(name, readValue(in, declarations, environments, objects));
+            }
+        }
+
+        for (var object : objects) {
+            if (object instanceof LoxList list) {
+                count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    LoxList.push(interpreter, list, readValue(in, declarations, environments, objects));
+                }
+            } else if (object instanceof LoxMap map) {
+                count = in.readInt();
+                for (int i = 0; i < count; i += 2) {
+                    var key = readValue(in, declarations, environments, objects);
+                    LoxMap.put(interpreter, map, key, readValue(in, declarations, environments, objects));
+                }
+            }
+        }
+    }
+
+    private static Object readValue(
+            DataInputStream in,
+            List<Stmt.Function> declarations,
+            List<Environment> environments,
+            List<Object> objects) throws IOException {
+        var tag = in.readUnsignedByte();
+        return switch (tag) {
+            case NIL -> null;
+            case FALSE -> false;
+            case TRUE -> true;
+            case NUMBER -> in.readDouble();
+            case STRING -> readString(in);
+            case FUNCTION -> new Function(declarations.get(in.readInt()), environments.get(in.readInt()));
+            case NATIVE -> {
+                var name = readString(in);
+                for (var function : Interpreter.natives) {
+                    if (function.name().equals(name)) {
+                        yield function;
+                    }
+                }
+
+                throw new IOException(String.format("Unknown native function \"%s\".", name));
+            }
+            case OBJECT -> objects.get(in.readInt());
+            default -> throw new IOException("Unknown value tag " + tag + ".");
+        };
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,71 @@
+package me.elinge.lox;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A function running on a thread of its own, as started by spawn(). It gets an interpreter of its own, so it has its
+// own idea of the current environment, but shares the globals and its closure with everyone else. A runtime error in
+// the task is reported by whoever awaits it.
+class Task {
+    private static final AtomicLong threadCount = new AtomicLong();
+    // Tasks run scripts like the main thread does, so they get the same big stack, which virtual threads can't be
+    // given. They are daemon threads, so a task that is never awaited doesn't keep the program from exiting. Also used
+    // for generators.
+    static final ThreadFactory threads = runnable -> {
+        var thread = Lox.newThread(runnable, "lox-task-" + threadCount.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    };
+
+    private final FutureTask<Object> result;
+
+    private Task(Interpreter interpreter, Callable function) {
+        result = new FutureTask<>(() -> {
+            var child = new Interpreter(interpreter);
+            try {
+                return function.call(child, List.of());
+            } finally {
+                child.finish();
+            }
+        });
+        threads.newThread(result).start();
+    }
+
+    static Task spawn(Interpreter interpreter, Object function) {
+        if (!(function instanceof Callable callable) || callable.arity() != 0) {
+            throw new NativeError("Can only spawn functions without parameters.");
+        }
+
+        return new Task(interpreter, callable);
+    }
+
+    static Object await(Object task) {
+        if (!(task instanceof Task awaited)) {
+            throw new NativeError("Can only await tasks.");
+        }
+
+        try {
+            return awaited.result.get();
+        } catch (ExecutionException e) {
+            // The error is reported where it happened in the task.
+            if (e.getCause() instanceof RuntimeException error) {
+                throw error;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted while awaiting a task.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<task>";
+    }
+}
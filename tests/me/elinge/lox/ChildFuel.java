@@ -0,0 +1,53 @@
+package me.elinge.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+// Runs a hundred short tasks, generators and parallelReduce() calls on a budget of fuel that is much less than a batch
+// each, which only lasts if every one of them gives back what it didn't burn. From the root of the repository:
+//
+//     javac -d out src/me/elinge/lox/*.java tests/me/elinge/lox/ChildFuel.java
+//     java -cp out me.elinge.lox.ChildFuel
+class ChildFuel {
+    private static final long FUEL = 50 * Budget.BATCH;
+
+    public static void main(String[] args) throws LoxException {
+        var program = Program.compile("""
+                fun id(x) {
+                  return x;
+                }
+
+                fun one() {
+                  return id(1);
+                }
+
+                fun two() {
+                  yield id(1);
+                  yield id(2);
+                }
+
+                fun add(a, b) {
+                  return a + b;
+                }
+
+                var sum = 0;
+                for (var i = 0; i < 100; i = i + 1) {
+                  sum = sum + await(spawn(one)) + next(two()) + parallelReduce(4, id, add);
+                }
+                print sum;
+                """);
+
+        var bytes = new ByteArrayOutputStream();
+        program.run(new PrintStream(bytes), null, new Budget(FUEL, null));
+        check(bytes.toString().equals(String.format("800%n")), "printed %s", bytes);
+
+        System.out.println("Fuel given back OK");
+    }
+
+    private static void check(boolean condition, String format, Object... arguments) {
+        if (!condition) {
+            System.err.printf(format + "%n", arguments);
+            System.exit(1);
+        }
+    }
+}
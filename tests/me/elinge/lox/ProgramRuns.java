@@ -0,0 +1,53 @@
+package me.elinge.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+// Runs one Program more times than an inline cache has room for shapes, and checks that every run prints the same and
+// leaves no property access megamorphic, which it would if the caches kept the classes of earlier runs. It is in the
+// package of the interpreter to get at the caches; from the root of the repository:
+//
+//     javac -d out src/me/elinge/lox/*.java tests/me/elinge/lox/ProgramRuns.java
+//     java -cp out me.elinge.lox.ProgramRuns
+class ProgramRuns {
+    private static final int RUNS = 2 * PropertyCache.MAX_SHAPES;
+
+    public static void main(String[] args) throws LoxException {
+        var program = Program.compile("""
+                class Point {
+                  init(x, y) {
+                    this.x = x;
+                    this.y = y;
+                  }
+
+                  sum() {
+                    return this.x + this.y;
+                  }
+                }
+
+                var point = Point(1, 2);
+                point.x = point.x + 10;
+                print point.sum();
+                """);
+
+        for (int run = 1; run <= RUNS; run++) {
+            var bytes = new ByteArrayOutputStream();
+            program.run(new PrintStream(bytes));
+            check(bytes.toString().equals(String.format("13%n")), "run %d printed %s", run, bytes);
+
+            for (var site : program.propertySites) {
+                var cache = site instanceof Expr.Get get ? get.cache : ((Expr.Set)site).cache;
+                check(cache != PropertyCache.MEGAMORPHIC, "run %d left a property access megamorphic", run);
+            }
+        }
+
+        System.out.printf("%d runs OK%n", RUNS);
+    }
+
+    private static void check(boolean condition, String format, Object... arguments) {
+        if (!condition) {
+            System.err.printf(format + "%n", arguments);
+            System.exit(1);
+        }
+    }
+}
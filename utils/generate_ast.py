@@ -10,6 +10,8 @@ def define_ast(output_directory, base_name, types):
     with open(path, 'w', encoding='utf-8') as out:
         class_names = [type[0] for type in types]
         fields = [[[split for split in field.strip().split(' ')] for field in type[1].split(',')] for type in types]
+        # Optional third element: mutable fields filled in after parsing, e.g. by the resolver.
+        mutable_fields = [[field.strip() for field in type[2].split(',')] if len(type) > 2 else [] for type in types]
         out.write(
 f'''package me.elinge.lox;
 
@@ -28,7 +30,7 @@ abstract class {base_name} {{
             return visitor.visit{class_names[i]}{base_name}(this);
         }}
 
-{'\n'.join([f'        final {field[0]} {field[1]};' for field in fields[i]])}
+{'\n'.join([f'        final {field[0]} {field[1]};' for field in fields[i]])}{''.join([f'\n        {field};' for field in mutable_fields[i]])}
     }}''' for i in range(len(types))])}
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -44,26 +46,33 @@ define_ast(
     output_directory,
     'Expr',
     [
-        ('Assign',   'Token name, Expr value'),
+        ('Assign',   'Token name, Expr value', 'int depth = -1'),
         ('Binary',   'Expr left, Token operator, Expr right'),
         ('Call',     'Expr callee, Token paren, List<Expr> arguments'),
+        ('Get',      'Expr object, Token name', 'PropertyCache cache = null'),
         ('Grouping', 'Expr expression'),
         ('Literal',  'Object value'),
         ('Logical',  'Expr left, Token operator, Expr right'),
+        ('Set',      'Expr object, Token name, Expr value', 'PropertyCache cache = null'),
+        ('Super',    'Token keyword, Token method', 'int depth = -1, int thisDepth = -1'),
+        ('This',     'Token keyword', 'int depth = -1'),
         ('Unary',    'Token operator, Expr right'),
         ('Ternary',  'Expr left, Token operator1, Expr middle, Token operator2, Expr right'),
-        ('Variable', 'Token name'),
+        ('Variable', 'Token name', 'int depth = -1'),
     ])
 define_ast(
 	output_directory,
 	'Stmt',
 	[
 		('Block',      'List<Stmt> statements'),
+		('Class',      'Token name, Expr.Variable superclass, List<Stmt.Function> methods'),
 		('Expression', 'Expr expression'),
-		('Function',   'Token name, List<Token> params, List<Stmt> body'),
+		('Function',   'Token name, List<Token> params, List<Stmt> body', 'boolean generator = false'),
 		('If',         'Expr condition, Stmt thenBranch, Stmt elseBranch'),
 		('Print',      'Expr expression'),
 		('Return',     'Token keyword, Expr value'),
 		('Var',        'Token name, Expr initializer'),
-		('While',      'Expr condition, Stmt body'),
+		('While',      'Token keyword, Expr condition, Stmt body'),
+		('ParallelFor', 'Token keyword, Token variable, Expr start, Token operator, Expr end, Expr step, Stmt body'),
+		('Yield',      'Token keyword, Expr value'),
 	])
@@ -0,0 +1,46 @@
+import os
+import socket
+import struct
+import sys
+
+# Thin client for `jlox --daemon=<socket>`, see Daemon.java for the protocol.
+
+PATH = 0
+SOURCE = 1
+
+EXIT = 0
+STDOUT = 1
+STDERR = 2
+
+def read_exactly(connection, length):
+    data = bytearray()
+    while len(data) < length:
+        chunk = connection.recv(length - len(data))
+        if not chunk:
+            print('Lost connection to the daemon.', file=sys.stderr)
+            sys.exit(69) # EX_UNAVAILABLE
+        data += chunk
+    return bytes(data)
+
+if len(sys.argv) != 3:
+    print('Usage: lox_client <socket> <script, or - to read the source from stdin>')
+    sys.exit(64) # EX_USAGE
+
+socket_path, script = sys.argv[1:]
+if script == '-':
+    kind, payload = SOURCE, sys.stdin.buffer.read()
+else:
+    kind, payload = PATH, os.path.abspath(script).encode('utf-8')
+
+with socket.socket(socket.AF_UNIX, socket.SOCK_STREAM) as connection:
+    connection.connect(socket_path)
+    connection.sendall(struct.pack('>bi', kind, len(payload)) + payload)
+
+    outputs = {STDOUT: sys.stdout.buffer, STDERR: sys.stderr.buffer}
+    while True:
+        stream, length = struct.unpack('>bi', read_exactly(connection, 5))
+        if stream == EXIT:
+            sys.stdout.flush()
+            sys.exit(length)
+        outputs[stream].write(read_exactly(connection, length))
+        outputs[stream].flush()